@@ -34,7 +34,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
 
 import java.util.StringTokenizer;
 import java.util.Iterator;
@@ -138,6 +141,57 @@ public abstract class AbstractCubicTransform<Derived extends AbstractCubicTransf
      */
     protected double jitter = 0.0;
     
+    /**
+     * How the jitter of neighbouring samples is distributed.
+     */
+    protected JitterPattern.Type jitterPattern = JitterPattern.Type.RANDOM;
+    
+    /**
+     * Seed of the jitter pattern.
+     */
+    protected long jitterSeed = 0L;
+    
+    /**
+     * Pool to take output images from, or null to allocate new ones.
+     */
+    protected ImagePool pool = null;
+    
+    /**
+     * Executor to run the transformation on, or null to use the shared executor.
+     */
+    protected ExecutorService executor = null;
+    
+    /**
+     * Maximum number of cube faces that {@link #transformToFaces(File)} keeps in memory
+     * at a time, counting the face being rendered and the faces waiting to be written.
+     */
+    protected int facesInFlight = 2;
+    
+    /**
+     * Names of the front, right, back, left, up and down cube faces.
+     */
+    protected final static String[] FACE_NAMES = new String[]{
+        "face_f", "face_r", "face_b", "face_l", "face_u", "face_d"
+    };
+    
+    /**
+     * Yaw, pitch and roll of the front, right, back, left, up and down cube faces.
+     */
+    protected final static double[][] FACE_VIEWS = new double[][]{
+        {   0,   0, 0 },
+        {  90,   0, 0 },
+        { 180,   0, 0 },
+        { -90,   0, 0 },
+        {   0,  90, 0 },
+        {   0, -90, 0 }
+    };
+    
+    /**
+     * Executor shared by all transforms that have not been given one. Created 
+     * on first use by {@link #sharedExecutor()}.
+     */
+    private static ExecutorService sharedExecutor = null;
+    
     /**
      * Creates a new transform instance.
      */
@@ -428,9 +482,146 @@ public abstract class AbstractCubicTransform<Derived extends AbstractCubicTransf
     }
     
     /**
-     * Performs the transformation.
+     * Sets how the jitter of neighbouring samples is distributed. The jitter of each 
+     * sample depends only on its position and the seed, so jittered transforms with
+     * the same pattern and seed give the same result.
+     *
+     * @param jitterPattern the type of pattern
+     * @param jitterSeed the seed
      */
-    public abstract Image transform () throws Exception;
+    public Derived jitterPattern (JitterPattern.Type jitterPattern, long jitterSeed) {
+        this.jitterPattern = jitterPattern;
+        this.jitterSeed = jitterSeed;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Sets how many cube faces {@link #transformToFaces(File)} may keep in memory at a time.
+     * While a face is written to disk, the next one is rendered, as long as no more 
+     * than {@code facesInFlight} faces are rendered but not yet written. 1 renders 
+     * and writes one face at a time.
+     *
+     * @param facesInFlight the maximum number of faces in memory, at least 1
+     */
+    public Derived facesInFlight (int facesInFlight) {
+        if (facesInFlight < 1) {
+            throw new IllegalArgumentException ("facesInFlight < 1 : " + facesInFlight);
+        }
+        this.facesInFlight = facesInFlight;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Sets a pool to take output images from. {@link #transformToFaces(File)}
+     * returns its output images to the pool when done, and callers of
+     * {@link #transform()} can return the result with {@link ImagePool#release(Image)}.
+     *
+     * @param pool the pool to use, or null to allocate a new image for each transform
+     */
+    public Derived pool (ImagePool pool) {
+        this.pool = pool;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Sets the executor to run the transformation on. Transforms that share an
+     * executor share its threads, so several transforms running at the same time
+     * do not create more threads than the executor allows. The executor is not shut
+     * down by the transform.
+     *
+     * @param executor the executor to use, or null to use the executor returned by {@link #sharedExecutor()}
+     */
+    public Derived executor (ExecutorService executor) {
+        this.executor = executor;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Gets the executor to run the transformation on.
+     */
+    protected ExecutorService executor () {
+        if (executor != null) {
+            return executor;
+        }
+        return sharedExecutor ();
+    }
+    
+    /**
+     * Returns the executor used by transforms that have not been given one with 
+     * {@link #executor(ExecutorService)}. It is a work-stealing pool with one 
+     * daemon thread per available processor, and is created the first time it is needed.
+     */
+    public static synchronized ExecutorService sharedExecutor () {
+        if (sharedExecutor == null) {
+            sharedExecutor = new ForkJoinPool (Runtime.getRuntime ().availableProcessors ());
+        }
+        return sharedExecutor;
+    }
+    
+    /**
+     * Performs the transformation, rendering into a new image or an image
+     * taken from the pool.
+     */
+    public Image transform () throws Exception {
+        return transform (createOutput ());
+    }
+    
+    /**
+     * Performs the transformation, rendering into an existing image. Every
+     * pixel of the output image is overwritten, so the image can be reused 
+     * from a previous transformation.
+     *
+     * @param output the image to render into. Must have the size set by {@link #size(int,int)}.
+     * @return the output image
+     */
+    public abstract Image transform (Image output) throws Exception;
+    
+    /**
+     * Gets an output image for the transform, from the pool if one is set.
+     * High dynamic range inputs get a {@link Image.Layout#HALF_FLOAT} output image,
+     * other inputs a {@link Image.Layout#PACKED} one.
+     */
+    protected Image createOutput () throws IOException {
+        if (pool != null) {
+            return pool.acquire (width, height, outputLayout ());
+        }
+        return Image.create (width, height, outputLayout ());
+    }
+    
+    /**
+     * The layout of the output image: {@link Image.Layout#HALF_FLOAT} for high dynamic 
+     * range inputs, {@link Image.Layout#PACKED} for other inputs.
+     */
+    protected Image.Layout outputLayout () {
+        return input.isHighDynamicRange () ? Image.Layout.HALF_FLOAT : Image.Layout.PACKED;
+    }
+    
+    /**
+     * Receives the faces rendered by {@link #transformToFaces(FaceHandler)}.
+     */
+    public static interface FaceHandler {
+        
+        /**
+         * Handles a rendered face. The face image is only valid until this method returns.
+         *
+         * @param name the name of the face: "face_f", "face_r", "face_b", "face_l", "face_u" or "face_d", 
+         * for "Front", "Right", "Back", "Left", "Up" and "Down" respectively
+         * @param face the face
+         */
+        public void face (String name, Image face) throws Exception;
+    }
     
     /**
      * Transforms an image map to six VR cube faces. This method modifies the view (yaw, pitch and roll) values for
@@ -439,27 +630,86 @@ public abstract class AbstractCubicTransform<Derived extends AbstractCubicTransf
      * @param outputBase the base directory to output the cube faces to
      * @return the resulting faces as PNG files in the outputBase directory. They are named "face_f.png", "face_r.png", "face_b.png", "face_l.png",
      * "face_u.png" and "face_d.png", for "Front", "Right", "Back", "Left", "Up" and "Down" respectively.
+     * Each face is written to disk while the next face is rendered, as described in
+     * {@link #transformToFaces(FaceHandler)}.
      */
-    public File[] transformToFaces (File outputBase) throws Exception {
-        final File[] files = new File[]{
-            new File (outputBase, "face_f.png"),
-            new File (outputBase, "face_r.png"),
-            new File (outputBase, "face_b.png"),
-            new File (outputBase, "face_l.png"),
-            new File (outputBase, "face_u.png"),
-            new File (outputBase, "face_d.png")
-            };
+    public File[] transformToFaces (final File outputBase) throws Exception {
+        final File[] files = new File[FACE_NAMES.length];
+        for (int i = 0; i < files.length; ++i) {
+            files[i] = new File (outputBase, FACE_NAMES[i] + ".png");
+        }
         
-        view (  0,   0, 0).transform ().write (files[0]);
-        view ( 90,   0, 0).transform ().write (files[1]);
-        view (180,   0, 0).transform ().write (files[2]);
-        view (-90,   0, 0).transform ().write (files[3]);
-        view (  0,  90, 0).transform ().write (files[4]);
-        view (  0, -90, 0).transform ().write (files[5]);
+        transformToFaces (new FaceHandler () {
+                public void face (String name, Image face) throws Exception {
+                    face.write (new File (outputBase, name + ".png"));
+                }
+            });
         
         return files;
     }
     
+    /**
+     * Transforms an image map to six VR cube faces, passing each face to a handler 
+     * instead of writing it to disk. This method modifies the view (yaw, pitch and roll) 
+     * values for this transform.
+     * <p>
+     * Each face is handled on the executor while the next face is rendered, with at most
+     * {@link #facesInFlight(int)} faces in memory, so the handler may be called from several threads
+     * at once. The output images are taken from, and returned to, the pool if one is set. 
+     * This method returns when every face has been handled, or throws the first 
+     * exception thrown by the transform or the handler.
+     *
+     * @param handler the handler to pass the faces to
+     */
+    public void transformToFaces (final FaceHandler handler) throws Exception {
+        final ImagePool faces = pool != null ? pool : new ImagePool ((long) width * height * facesInFlight);
+        final Semaphore inFlight = new Semaphore (facesInFlight);
+        List<Future<Object>> handled = new ArrayList<Future<Object>> ();
+        Exception failure = null;
+        try {
+            for (int i = 0; i < FACE_NAMES.length; ++i) {
+                inFlight.acquire ();
+                final Image output = faces.acquire (width, height, outputLayout ());
+                final String name = FACE_NAMES[i];
+                try {
+                    view (FACE_VIEWS[i][0], FACE_VIEWS[i][1], FACE_VIEWS[i][2]).transform (output);
+                } catch (Exception e) {
+                    faces.release (output);
+                    inFlight.release ();
+                    throw e;
+                }
+                
+                handled.add (executor ().submit (new Callable<Object> () {
+                            public Object call () throws Exception {
+                                try {
+                                    handler.face (name, output);
+                                } finally {
+                                    faces.release (output);
+                                    inFlight.release ();
+                                }
+                                return null;
+                            }
+                        }));
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        
+        // Wait for every handler, so that no face is still being handled when we return
+        for (Future<Object> future : handled) {
+            try {
+                future.get ();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause () instanceof Exception ? (Exception) e.getCause () : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
     
     /**
      * Convenience function to load an image from a file.
@@ -484,26 +734,10 @@ public abstract class AbstractCubicTransform<Derived extends AbstractCubicTransf
      * "face_u.png" and "face_d.png", for "Front", "Right", "Back", "Left", "Up" and "Down" respectively.
      */
     public static File[] transformToFaces (AbstractCubicTransform xform, File outputBase, final int outputSize, double oy, double op, double or) throws Exception {
-        final File[] files = new File[]{
-            new File (outputBase, "face_f.png"),
-            new File (outputBase, "face_r.png"),
-            new File (outputBase, "face_b.png"),
-            new File (outputBase, "face_l.png"),
-            new File (outputBase, "face_u.png"),
-            new File (outputBase, "face_d.png")
-            };
-        
         xform.vfov (90)
             .offset (oy, op, or)
             .size (outputSize, outputSize);
         
-        xform.view (  0,   0, 0).transform ().write (files[0]);
-        xform.view ( 90,   0, 0).transform ().write (files[1]);
-        xform.view (180,   0, 0).transform ().write (files[2]);
-        xform.view (-90,   0, 0).transform ().write (files[3]);
-        xform.view (  0,  90, 0).transform ().write (files[4]);
-        xform.view (  0, -90, 0).transform ().write (files[5]);
-        
-        return files;
+        return xform.transformToFaces (outputBase);
     }
 }
\ No newline at end of file
@@ -40,6 +40,8 @@ import java.util.StringTokenizer;
 import java.util.Iterator;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -52,132 +54,1060 @@ import java.util.List;
  */
 public abstract class AbstractSphericalCubicTransform<Derived extends AbstractCubicTransform> extends AbstractCubicTransform<Derived> {
     
+    /**
+     * Ways to compute the yaw and pitch angles of the sight rays.
+     */
+    public static enum Kernel {
+        /**
+         * Inverse trigonometric functions looked up in tables, one sample at a time.
+         * The tables are chosen by {@link #trigError(double)}. This is the default.
+         */
+        TABLE,
+        
+        /**
+         * A polynomial approximation of atan2, computed over a whole row of samples 
+         * in a loop without calls or branches that the JIT compiler can vectorize.
+         * Accurate to <code>10<sup>-8</sup></code> radians.
+         */
+        POLYNOMIAL
+    }
+    
+    /**
+     * Ways to filter the image map when it is minified.
+     */
+    public static enum Filter {
+        /**
+         * Average a grid of bilinear samples, set by {@link #oversampling(int)},
+         * {@link #jitter(double)} and {@link #adaptiveOversampling(double)}, for each 
+         * output pixel. This is the default.
+         */
+        OVERSAMPLING,
+        
+        /**
+         * Take one trilinear sample of a {@link MipMap} for each output pixel, from the levels
+         * that match the longest side of the footprint of the pixel in the image map.
+         * Alias-free, but blurs where the footprint is elongated.
+         */
+        TRILINEAR,
+        
+        /**
+         * Take up to {@link #ANISOTROPIC_PROBES} trilinear samples of a {@link MipMap} 
+         * along the major axis of the footprint of each output pixel, from the levels that 
+         * match its minor axis. Sharper than {@link #TRILINEAR} near the poles and 
+         * at grazing angles.
+         */
+        ANISOTROPIC
+    }
+    
+    /**
+     * Largest number of trilinear probes per output pixel for {@link Filter#ANISOTROPIC}.
+     */
+    public final static int ANISOTROPIC_PROBES = 8;
+    
+    /**
+     * Width and height, in pixels, of the squares that the faces are rendered in 
+     * when the image map is a {@link StreamingImage}.
+     */
+    public final static int STREAM_REGION = 256;
+    
+    /**
+     * True iff the image map coordinates of each sample are looked up in a {@link RemapTable}.
+     */
+    protected boolean remap = false;
+    
+    /**
+     * Directory to store remap tables in, or null to only keep them in memory.
+     */
+    protected File remapDirectory = null;
+    
+    /**
+     * Maximum error, in radians, of the inverse trigonometric functions, or zero
+     * to use {@link FastTrigInverse.FastAcos} and {@link FastTrigInverse.FastAtan}.
+     */
+    protected double trigError = 0.0;
+    
+    /**
+     * How the angles of the sight rays are computed.
+     */
+    protected Kernel kernel = Kernel.TABLE;
+    
+    /**
+     * Footprint, in image map pixels, that each sample may cover when oversampling
+     * adaptively, or zero to oversample every pixel by {@link #oversampling}.
+     */
+    protected double adaptiveThreshold = 0.0;
+    
+    /**
+     * How the image map is filtered.
+     */
+    protected Filter filter = Filter.OVERSAMPLING;
+    
+    /**
+     * Prefiltered levels of the image map, built on first use by a filtering transform
+     * and kept for as long as the image map stays the same.
+     */
+    private MipMap mipMap = null;
+    
     /**
      * Creates a new transform instance.
      */
     public AbstractSphericalCubicTransform () {
     }
     
+    /**
+     * Sets whether to look up the image map coordinates of each sample in a 
+     * {@link RemapTable} instead of computing them. The first transform with a
+     * given geometry computes the table, and later transforms with the same 
+     * geometry, for any image map of the same size, replay it. Jittered
+     * transforms share a table only if they have the same jitter, pattern and seed.
+     *
+     * @param remap if true, use remap tables
+     */
+    public Derived remap (boolean remap) {
+        this.remap = remap;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Sets the directory to store remap tables in, so that they can be reused by
+     * later runs of the program. Also turns on the use of remap tables if
+     * the directory is not null. The directory is created when the first table is
+     * written. Tables that can't be written are reported and skipped.
+     *
+     * @param remapDirectory the directory, or null to only keep tables in memory
+     */
+    public Derived remapDirectory (File remapDirectory) {
+        this.remapDirectory = remapDirectory;
+        if (remapDirectory != null) {
+            this.remap = true;
+        }
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Sets the maximum error of the inverse trigonometric functions used to find
+     * the direction of each sight ray. If greater than zero, {@link FastTrigInverse.GridAcos}
+     * and {@link FastTrigInverse.GridAtan} are used, which index their tables directly. 
+     * Otherwise, {@link FastTrigInverse.FastAcos} and {@link FastTrigInverse.FastAtan} are used,
+     * which search tables that grow with the size of the image map and the oversampling.
+     *
+     * @param trigError the maximum error in radians, or zero to use the searched tables
+     */
+    public Derived trigError (double trigError) {
+        if (trigError < 0.0) {
+            throw new IllegalArgumentException ("trigError < 0 : " + trigError);
+        }
+        this.trigError = trigError;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Turns on adaptive oversampling. The footprint of each output pixel in the 
+     * image map is estimated from the image map coordinates of its corners, and the pixel is 
+     * oversampled with the smallest grid that keeps the distance between samples at or below 
+     * {@code threshold} image map pixels. The grid is at most {@link #oversampling(int)} samples
+     * along each axis. Pixels that magnify the image map get a single sample, so most
+     * of the cost of oversampling is only paid where the image map is minified, such as
+     * near the poles. Remap tables are not used with adaptive oversampling.
+     *
+     * @param threshold the largest distance between samples, in image map pixels, 
+     * or zero to oversample every pixel with the full grid
+     */
+    public Derived adaptiveOversampling (double threshold) {
+        if (threshold < 0.0) {
+            throw new IllegalArgumentException ("threshold < 0 : " + threshold);
+        }
+        this.adaptiveThreshold = threshold;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Sets how the image map is filtered. With {@link Filter#TRILINEAR} and 
+     * {@link Filter#ANISOTROPIC}, a {@link MipMap} of the image map is built on first use and 
+     * reused for every later transform of the same image map, such as the other cube faces
+     * or other views. Oversampling, jitter and remap tables are not used by those filters.
+     *
+     * @param filter the filter to use
+     */
+    public Derived filter (Filter filter) {
+        this.filter = filter;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Gets the {@link MipMap} of the current image map, building it if the image map,
+     * or whether it wraps around, has changed since it was last built.
+     */
+    protected synchronized MipMap mipMap () throws IOException {
+        if (mipMap == null || mipMap.base () != input || mipMap.horizontalWrap () != horizontalWrap) {
+            mipMap = new MipMap (input, horizontalWrap);
+        }
+        return mipMap;
+    }
+    
+    /**
+     * Sets the {@link MipMap} to filter with, so that several transforms of the same
+     * image map can share one instead of each building their own. It is only used
+     * while the image map and whether it wraps around match those it was built for.
+     *
+     * @param mipMap the mip-map
+     */
+    public synchronized Derived mipMap (MipMap mipMap) {
+        this.mipMap = mipMap;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Sets how the yaw and pitch angles of the sight rays are computed.
+     *
+     * @param kernel the kernel to use
+     */
+    public Derived kernel (Kernel kernel) {
+        this.kernel = kernel;
+        
+        @SuppressWarnings("unchecked") 
+            Derived dthis = (Derived) this;
+        return dthis;
+    }
+    
+    /**
+     * Returns a string that identifies the mapping from output samples to image map
+     * coordinates. Subclasses whose {@link #transformPoint} depends on other
+     * parameters must add them to the key.
+     */
+    protected String remapKey () {
+        return getClass ().getName () + 
+            " input=" + input.width () + "x" + input.height () + 
+            " inputVfov=" + inputVfov + " inputHfov=" + inputHfov + " inputHorizon=" + inputHorizon + 
+            " offset=" + oy + "," + op + "," + or + 
+            " view=" + yaw + "," + pitch + "," + roll + 
+            " vfov=" + vfov + " size=" + width + "x" + height + " oversampling=" + oversampling + 
+            " trigError=" + trigError + " kernel=" + kernel + 
+            " jitter=" + jitter + " jitterPattern=" + jitterPattern + "," + jitterSeed;
+    }
+    
+    /**
+     * Gets the remap table for the current geometry from the cache, or from the 
+     * remap directory if one is set.
+     *
+     * @return the table, or null if it has not been computed yet
+     */
+    protected RemapTable remapTable (String key) throws IOException {
+        RemapTable table = RemapTable.cached (key);
+        if (table == null && remapDirectory != null) {
+            table = RemapTable.read (RemapTable.file (remapDirectory, key), width * oversampling, height * oversampling);
+            if (table != null) {
+                RemapTable.cache (key, table);
+            }
+        }
+        return table;
+    }
+    
+    /**
+     * Creates an empty remap table for the current geometry. If a remap directory is
+     * set, the table is recorded straight into a file there instead of in the Java heap.
+     */
+    protected RemapTable newRemapTable (String key) {
+        int w = width * oversampling;
+        int h = height * oversampling;
+        if (remapDirectory != null) {
+            File file = RemapTable.file (remapDirectory, key);
+            try {
+                return RemapTable.create (file, w, h);
+            } catch (IOException ioe) {
+                System.err.println ("WARNING: Unable to create remap table " + file.getPath () + ": " + ioe.getMessage ());
+            }
+        }
+        return new RemapTable (w, h);
+    }
+    
     /**
      * Performs the transformation.
      */
     @Override
-        public Image transform () throws Exception {
-        final Image output = new Image (width, height);
+        public Image transform (final Image output) throws Exception {
+        if (output.width () != width || output.height () != height) {
+            throw new IllegalArgumentException ("Output image size " + output.width () + "x" + output.height () + 
+                " does not match transform size " + width + "x" + height);
+        }
+        return transform (output, 0, 0, 0, 0, width, height);
+    }
+    
+    /**
+     * Performs the transformation for a rectangle of the output, rendering it into
+     * an image at an offset and leaving the rest of the image unchanged. The image
+     * can be smaller than the size set by {@link #size(int,int)}, so that a tile of 
+     * a large output can be rendered on its own. Remap tables are only used when
+     * the rectangle is the whole output.
+     *
+     * @param output the image to render into
+     * @param outputX the x-coordinate in the image to render the top-left corner of the rectangle to
+     * @param outputY the y-coordinate in the image to render the top-left corner of the rectangle to
+     * @param regionX the x-coordinate of the top-left corner of the rectangle
+     * @param regionY the y-coordinate of the top-left corner of the rectangle
+     * @param regionWidth the width of the rectangle
+     * @param regionHeight the height of the rectangle
+     * @return the output image
+     */
+    public Image transform (final Image output, int outputX, int outputY, int regionX, int regionY, int regionWidth, int regionHeight) throws Exception {
+        if (regionX < 0 || regionY < 0 || regionX + regionWidth > width || regionY + regionHeight > height) {
+            throw new IllegalArgumentException ("Region " + regionX + "," + regionY + " + " + regionWidth + "x" + regionHeight + 
+                " is outside the transform size " + width + "x" + height);
+        }
+        if (outputX < 0 || outputY < 0 || outputX + regionWidth > output.width () || outputY + regionHeight > output.height ()) {
+            throw new IllegalArgumentException ("Region " + regionWidth + "x" + regionHeight + " at " + outputX + "," + outputY + 
+                " does not fit in the output image size " + output.width () + "x" + output.height ());
+        }
+        final int offsetX = outputX - regionX;
+        final int offsetY = outputY - regionY;
+        final boolean highDynamicRange = input.isHighDynamicRange ();
         
         final Point3D topLeft = new Point3D (-Math.tan (vfov / 2) * width / height, -Math.tan (vfov / 2), 1.0);
         final Point3D uv = new Point3D (- 2 * topLeft.x / width, - 2 * topLeft.y / height, 0.0);
-        if (oversampling != 1) {
+        
+        // Filtering and adaptive oversampling place their samples in units of output pixels,
+        // uniform oversampling in units of the oversampling grid
+        final boolean filtered = filter != Filter.OVERSAMPLING;
+        final boolean adaptive = !filtered && adaptiveThreshold > 0.0 && oversampling > 1;
+        final boolean footprints = filtered || adaptive;
+        final int probes = filter == Filter.ANISOTROPIC ? ANISOTROPIC_PROBES : 1;
+        final MipMap mip = filtered ? mipMap () : null;
+        final JitterPattern pattern = jitter > 0.0 ? JitterPattern.get (jitterPattern, jitterSeed) : null;
+        if (oversampling != 1 && !footprints) {
             uv.scale (1.0 / oversampling);
         }
         
-        final Point3DTransform transform = new Point3DTransform ();
-        transform.rotateZ (MathUtil.toRad (roll));
-        transform.rotateX (MathUtil.toRad (pitch));
-        transform.rotateY (MathUtil.toRad (yaw));
+        final Point3DTransform transform = viewTransform ();
         
-        transform.rotateY (MathUtil.toRad (oy));
-        transform.rotateX (MathUtil.toRad (op));
-        transform.rotateZ (MathUtil.toRad (or));
+        // The ray through sample (x, y) is origin + x * rowStep + y * columnStep
+        final Point3D origin = transform.transform (new Point3D (topLeft.x, topLeft.y, topLeft.z));
+        final Point3D rowStep = transform.transform (new Point3D (uv.x, 0.0, 0.0));
+        final Point3D columnStep = transform.transform (new Point3D (0.0, uv.y, 0.0));
+        
+        final boolean wholeOutput = regionX == 0 && regionY == 0 && regionWidth == width && regionHeight == height;
+        final String remapKey = remap && !footprints && wholeOutput ? remapKey () : null;
+        final RemapTable existingTable = remapKey != null ? remapTable (remapKey) : null;
+        final boolean replay = existingTable != null;
+        final RemapTable table = remapKey != null && !replay ? newRemapTable (remapKey) : existingTable;
+        
+        final boolean useTables = !replay && kernel == Kernel.TABLE;
+        FastTrigInverse acos = null;
+        FastTrigInverse atan = null;
+        if (useTables && trigError > 0.0) {
+            acos = FastTrigInverse.gridAcos (trigError);
+            atan = FastTrigInverse.gridAtan (trigError);
+        } else if (useTables) {
+            acos = FastTrigInverse.acos (input.width () * 2 * oversampling);
+            atan = FastTrigInverse.atan (input.height () * 2 * oversampling);
+        }
+        final FastTrigInverse fastAcos = acos;
+        final FastTrigInverse fastAtan = atan;
         
-        final FastTrigInverse.FastAcos fastAcos = new FastTrigInverse.FastAcos (input.width () * 2 * oversampling);
-        final FastTrigInverse.FastAtan fastAtan = new FastTrigInverse.FastAtan (input.height () * 2 * oversampling);
+        final double interiorMaxX = horizontalWrap ? input.width () + input.border () - 1 : input.width () - 1;
+        // The guard columns hold wrapped pixels, but the guard rows only repeat the edge
+        // rows, so the interior only extends into the border horizontally
+        final double interiorMaxY = input.height () - 1;
+        final double inputWidth = input.width ();
         
-        final int STEPS = Runtime.getRuntime ().availableProcessors () * 2;
-        final int STEP = Math.max (height / STEPS, 256);
+        final int TILE = tileSize (regionWidth, regionHeight, Runtime.getRuntime ().availableProcessors ());
         
-        ExecutorService es = Executors.newFixedThreadPool (Runtime.getRuntime ().availableProcessors ());
+        ExecutorService es = executor ();
         List<Callable<Object>> callables = new ArrayList<Callable<Object>> ();
         
-        for (int topLine = 0; topLine < height; topLine += STEP) {
-            final int startY = topLine;
-            final int endY = Math.min (startY + STEP, height);
-            callables.add (new Callable<Object> () {
-                    public Object call () throws Exception {
-                        final Point3D point = new Point3D (0,0,0);
-                        final int[] oversamplingBuffer = new int[width * 3];
-                        final int[] sampleBuffer = new int[3];
-                        final Point2D transformOut = new Point2D ();
-                        for (int destY = startY; destY < endY; ++destY) {
-                            Arrays.fill (oversamplingBuffer, 0);
-                            for (int y = destY * oversampling; y < destY * oversampling + oversampling; ++y) {
-                                for (int x = 0; x < width * oversampling; ++x) {
-                                    point.x = topLeft.x;
-                                    point.y = topLeft.y;
-                                    point.z = topLeft.z;
-                                    if (jitter > 0.0) {
-                                        point.translate3D (
-                                            (x + Math.random () * jitter) * uv.x,
-                                            (y + Math.random () * jitter) * uv.y, 0.0);
-                                    } else {
-                                        point.translate3D (x * uv.x, y * uv.y, 0.0);
+        for (int tileY = regionY; tileY < regionY + regionHeight; tileY += TILE) {
+            for (int tileX = regionX; tileX < regionX + regionWidth; tileX += TILE) {
+                final int startX = tileX;
+                final int endX = Math.min (startX + TILE, regionX + regionWidth);
+                final int startY = tileY;
+                final int endY = Math.min (startY + TILE, regionY + regionHeight);
+                callables.add (new Callable<Object> () {
+                        public Object call () throws Exception {
+                            final int columns = endX - startX;
+                            final int[] oversamplingBuffer = new int[columns * 3];
+                            final int[] sampleBuffer = new int[3];
+                            final float[] hdrOversamplingBuffer = highDynamicRange ? new float[columns * 3] : null;
+                            final float[] hdrSampleBuffer = new float[3];
+                            final int[] sampleCount = new int[columns];
+                            final int x0 = startX * oversampling;
+                            final int n = adaptive ? columns * oversampling * oversampling : columns * oversampling;
+                            final MipMap.Sampler sampler = filtered ? mip.sampler () : null;
+                            final Scanline scanline = replay ? null : new Scanline (Math.max (n, columns + 1), origin, rowStep, columnStep, fastAcos, fastAtan, pattern);
+                            final double[] inXs = replay ? new double[n] : scanline.inX;
+                            final double[] inYs = replay ? new double[n] : scanline.inY;
+                            
+                            // Sample positions, and image map coordinates of the top and bottom pixel corners, 
+                            // for filtering and adaptive oversampling
+                            final double[] px = footprints ? new double[Math.max (n, columns + 1)] : null;
+                            final double[] py = footprints ? new double[Math.max (n, columns + 1)] : null;
+                            double[] topX = footprints ? new double[columns + 1] : null;
+                            double[] topY = footprints ? new double[columns + 1] : null;
+                            double[] bottomX = footprints ? new double[columns + 1] : null;
+                            double[] bottomY = footprints ? new double[columns + 1] : null;
+                            
+                            for (int destY = startY; destY < endY; ++destY) {
+                                Arrays.fill (oversamplingBuffer, 0);
+                                if (highDynamicRange) {
+                                    Arrays.fill (hdrOversamplingBuffer, 0.0f);
+                                }
+                                if (footprints) {
+                                    if (destY == startY) {
+                                        for (int i = 0; i <= columns; ++i) {
+                                            px[i] = startX + i;
+                                            py[i] = destY;
+                                        }
+                                        scanline.map (px, py, columns + 1);
+                                        System.arraycopy (inXs, 0, topX, 0, columns + 1);
+                                        System.arraycopy (inYs, 0, topY, 0, columns + 1);
                                     }
+                                    for (int i = 0; i <= columns; ++i) {
+                                        px[i] = startX + i;
+                                        py[i] = destY + 1;
+                                    }
+                                    scanline.map (px, py, columns + 1);
+                                    System.arraycopy (inXs, 0, bottomX, 0, columns + 1);
+                                    System.arraycopy (inYs, 0, bottomY, 0, columns + 1);
                                     
-                                    transform.transform (point);
-                                    
-                                    double theta = 0.0;
-                                    double phi = 0.0;
-                                    
-                                    double nxz = Math.sqrt (point.x * point.x + point.z * point.z);
-                                    if (nxz < Double.MIN_NORMAL) {
-                                        if (point.y > 0) {
-                                            phi = MathUtil.toRad (90);
-                                        } else {
-                                            phi = MathUtil.toRad (-90);
+                                    int count = 0;
+                                    for (int i = 0; i < columns; ++i) {
+                                        double ax = topX[i + 1] - topX[i];
+                                        double ay = topY[i + 1] - topY[i];
+                                        double bx = bottomX[i] - topX[i];
+                                        double by = bottomY[i] - topY[i];
+                                        if (horizontalWrap) {
+                                            ax -= Math.rint (ax / inputWidth) * inputWidth;
+                                            bx -= Math.rint (bx / inputWidth) * inputWidth;
+                                        }
+                                        if (filtered) {
+                                            // One filtered sample at the center of the footprint
+                                            double cx = topX[i] + (ax + bx) * 0.5;
+                                            double cy = topY[i] + (ay + by) * 0.5;
+                                            int obx = i * 3;
+                                            sampleCount[i] = 1;
+                                            if (cy >= 0 && cy < input.height () && (horizontalWrap || (cx >= 0 && cx < input.width ()))) {
+                                                if (highDynamicRange) {
+                                                    sampler.sample (cx, cy, ax, ay, bx, by, probes, hdrSampleBuffer);
+                                                    for (int c = 0; c < hdrSampleBuffer.length; ++c) {
+                                                        hdrOversamplingBuffer[obx + c] += hdrSampleBuffer[c];
+                                                    }
+                                                } else {
+                                                    sampler.sample (cx, cy, ax, ay, bx, by, probes, sampleBuffer);
+                                                    for (int c = 0; c < sampleBuffer.length; ++c) {
+                                                        oversamplingBuffer[obx + c] += sampleBuffer[c];
+                                                    }
+                                                }
+                                            }
+                                            continue;
                                         }
-                                    } else {
-                                        phi = fastAtan.f (point.y / nxz);
-                                        theta = fastAcos.f (point.z / nxz); //Math.acos (
-                                        if (point.x < 0) {
-                                            theta = -theta;
+                                        double footprint = Math.sqrt (Math.max (ax * ax + ay * ay, bx * bx + by * by));
+                                        int grid = (int) Math.ceil (footprint / adaptiveThreshold);
+                                        grid = Math.max (1, Math.min (oversampling, grid));
+                                        sampleCount[i] = grid * grid;
+                                        for (int sy = 0; sy < grid; ++sy) {
+                                            for (int sx = 0; sx < grid; ++sx) {
+                                                if (jitter > 0.0) {
+                                                    int gx = (startX + i) * oversampling + sx;
+                                                    int gy = destY * oversampling + sy;
+                                                    px[count] = startX + i + (sx + pattern.x (gx, gy) * jitter) / grid;
+                                                    py[count] = destY + (sy + pattern.y (gx, gy) * jitter) / grid;
+                                                } else {
+                                                    px[count] = startX + i + (double) sx / grid;
+                                                    py[count] = destY + (double) sy / grid;
+                                                }
+                                                ++count;
+                                            }
+                                        }
+                                    }
+                                    if (adaptive) {
+                                        scanline.map (px, py, count);
+                                        
+                                        int j = 0;
+                                        for (int i = 0; i < columns; ++i) {
+                                            int obx = i * 3;
+                                            for (int k = 0; k < sampleCount[i]; ++k) {
+                                                if (highDynamicRange) {
+                                                    sample (inXs[j], inYs[j], hdrSampleBuffer);
+                                                    for (int c = 0; c < hdrSampleBuffer.length; ++c) {
+                                                        hdrOversamplingBuffer[obx + c] += hdrSampleBuffer[c];
+                                                    }
+                                                } else {
+                                                    sample (inXs[j], inYs[j], interiorMaxX, interiorMaxY, sampleBuffer);
+                                                    for (int c = 0; c < sampleBuffer.length; ++c) {
+                                                        oversamplingBuffer[obx + c] += sampleBuffer[c];
+                                                    }
+                                                }
+                                                ++j;
+                                            }
                                         }
                                     }
                                     
-                                    transformPoint (theta, phi, transformOut);
-                                    double inX = transformOut.x;
-                                    double inY = transformOut.y;
-                                    
-                                    if (inY >= 0 && inY < input.height () && (horizontalWrap || (inX >= 0 && inX < input.width ()))) {
-                                        if (inY >= input.height () - 1 || (!horizontalWrap && inX >= input.width () - 1)) {
-                                            input.componentValue ((int) inX, (int) inY, sampleBuffer);
+                                    double[] swap = topX;
+                                    topX = bottomX;
+                                    bottomX = swap;
+                                    swap = topY;
+                                    topY = bottomY;
+                                    bottomY = swap;
+                                } else {
+                                    Arrays.fill (sampleCount, oversampling * oversampling);
+                                    for (int y = destY * oversampling; y < destY * oversampling + oversampling; ++y) {
+                                        if (replay) {
+                                            table.get (x0, y, inXs, inYs, n);
                                         } else {
-                                            input.sampleComponents (inX, inY, sampleBuffer);
+                                            scanline.map (x0, y, n);
+                                            if (table != null) {
+                                                // Sample at the stored precision, so that replays give the same result
+                                                table.set (x0, y, inXs, inYs, n);
+                                                table.get (x0, y, inXs, inYs, n);
+                                            }
+                                        }
+                                        for (int i = 0; i < n; ++i) {
+                                            int obx = (i / oversampling) * 3;
+                                            if (highDynamicRange) {
+                                                sample (inXs[i], inYs[i], hdrSampleBuffer);
+                                                for (int c = 0; c < hdrSampleBuffer.length; ++c) {
+                                                    hdrOversamplingBuffer[obx + c] += hdrSampleBuffer[c];
+                                                }
+                                            } else {
+                                                sample (inXs[i], inYs[i], interiorMaxX, interiorMaxY, sampleBuffer);
+                                                for (int c = 0; c < sampleBuffer.length; ++c) {
+                                                    oversamplingBuffer[obx + c] += sampleBuffer[c];
+                                                }
+                                            }
                                         }
-                                    } else {
-                                        sampleBuffer[0] = 0;
-                                        sampleBuffer[1] = 0;
-                                        sampleBuffer[2] = 0;
                                     }
-                                    
-                                    int obx = x / oversampling;
-                                    obx *= 3;
-                                    for (int i = 0; i < sampleBuffer.length; ++i) {
-                                        oversamplingBuffer[obx + i] += sampleBuffer[i];
+                                }
+                                if (highDynamicRange) {
+                                    for (int x = startX; x < endX; ++x) {
+                                        int obx = (x - startX) * 3;
+                                        float scale = 1.0f / sampleCount[x - startX];
+                                        output.componentValue (x + offsetX, destY + offsetY, 
+                                            hdrOversamplingBuffer[obx + 0] * scale, 
+                                            hdrOversamplingBuffer[obx + 1] * scale, 
+                                            hdrOversamplingBuffer[obx + 2] * scale);
                                     }
+                                    continue;
+                                }
+                                for (int x = startX; x < endX; ++x) {
+                                    int obx = (x - startX) * 3;
+                                    int samples = sampleCount[x - startX];
+                                    output.componentValue (x + offsetX, destY + offsetY, oversamplingBuffer[obx + 0] / samples, oversamplingBuffer[obx + 1] / samples, oversamplingBuffer[obx + 2] / samples);
                                 }
                             }
-                            int oversampling2 = oversampling * oversampling;
-                            for (int x = 0; x < oversamplingBuffer.length; ++x) {
-                                oversamplingBuffer[x] /= oversampling2;
-                            }
-                            for (int x = 0; x < width; ++x) {
-                                output.componentValue (x, destY, oversamplingBuffer[x * 3 + 0], oversamplingBuffer[x * 3 + 1], oversamplingBuffer[x * 3 + 2]);
-                            }
+                            return null;
                         }
-                        return null;
-                    }
-                });
+                    });
+            }
         }
         
         for (Future<Object> f : es.invokeAll (callables)) {
             f.get ();
         }
-        es.shutdown ();
-        es.awaitTermination (20, TimeUnit.SECONDS);
+        
+        if (table != null && !replay) {
+            RemapTable.cache (remapKey, table);
+            if (remapDirectory != null) {
+                // The table is only a cache, so failing to store it must not lose the output
+                File file = RemapTable.file (remapDirectory, remapKey);
+                try {
+                    table.write (file);
+                } catch (IOException ioe) {
+                    System.err.println ("WARNING: Unable to write remap table " + file.getPath () + ": " + ioe.getMessage ());
+                }
+            }
+        }
         
         return output;
     }
+    
+    /**
+     * Builds the rotation from the output image to the image map for the current view and offsets.
+     */
+    private Point3DTransform viewTransform () {
+        Point3DTransform transform = new Point3DTransform ();
+        transform.rotateZ (MathUtil.toRad (roll));
+        transform.rotateX (MathUtil.toRad (pitch));
+        transform.rotateY (MathUtil.toRad (yaw));
+        
+        transform.rotateY (MathUtil.toRad (oy));
+        transform.rotateX (MathUtil.toRad (op));
+        transform.rotateZ (MathUtil.toRad (or));
+        return transform;
+    }
+    
+    /**
+     * Finds the lines of the image map that are sampled when a rectangle of the output 
+     * image is rendered with the current view. The outline of the rectangle is mapped 
+     * to the image map, and if it winds around a pole, the pole is added, as the image 
+     * map y-coordinate of {@link #transformPoint} only depends on, and increases with, 
+     * the pitch angle.
+     *
+     * @param regionX the x-coordinate of the top-left corner of the rectangle
+     * @param regionY the y-coordinate of the top-left corner of the rectangle
+     * @param regionWidth the width of the rectangle
+     * @param regionHeight the height of the rectangle
+     * @param result the lines sampled. result[0] = first line, result[1] = last line
+     */
+    protected void inputLines (int regionX, int regionY, int regionWidth, int regionHeight, int[] result) {
+        final Point3D topLeft = new Point3D (-Math.tan (vfov / 2) * width / height, -Math.tan (vfov / 2), 1.0);
+        final Point3D uv = new Point3D (- 2 * topLeft.x / width, - 2 * topLeft.y / height, 0.0);
+        final Point3DTransform transform = viewTransform ();
+        final Point3D origin = transform.transform (new Point3D (topLeft.x, topLeft.y, topLeft.z));
+        final Point3D rowStep = transform.transform (new Point3D (uv.x, 0.0, 0.0));
+        final Point3D columnStep = transform.transform (new Point3D (0.0, uv.y, 0.0));
+        
+        // Walk around the rectangle, widened by the jitter, in steps of a quarter pixel
+        double margin = Math.max (0.0, jitter);
+        double x0 = regionX - margin;
+        double y0 = regionY - margin;
+        double x1 = regionX + regionWidth + margin;
+        double y1 = regionY + regionHeight + margin;
+        int columns = (int) Math.ceil ((x1 - x0) * 4);
+        int rows = (int) Math.ceil ((y1 - y0) * 4);
+        int n = 2 * (columns + rows);
+        double[] theta = new double[n + 1];
+        double[] phi = new double[n + 1];
+        double[] outX = new double[n + 1];
+        double[] outY = new double[n + 1];
+        for (int i = 0; i < n; ++i) {
+            double x;
+            double y;
+            if (i < columns) {
+                x = x0 + (x1 - x0) * i / columns;
+                y = y0;
+            } else if (i < columns + rows) {
+                x = x1;
+                y = y0 + (y1 - y0) * (i - columns) / rows;
+            } else if (i < 2 * columns + rows) {
+                x = x1 - (x1 - x0) * (i - columns - rows) / columns;
+                y = y1;
+            } else {
+                x = x0;
+                y = y1 - (y1 - y0) * (i - 2 * columns - rows) / rows;
+            }
+            double rx = origin.x + x * rowStep.x + y * columnStep.x;
+            double ry = origin.y + x * rowStep.y + y * columnStep.y;
+            double rz = origin.z + x * rowStep.z + y * columnStep.z;
+            theta[i] = Math.atan2 (rx, rz);
+            phi[i] = Math.atan2 (ry, Math.sqrt (rx * rx + rz * rz));
+        }
+        
+        double winding = 0.0;
+        for (int i = 0; i < n; ++i) {
+            double d = theta[(i + 1) % n] - theta[i];
+            if (d > Math.PI) {
+                d -= 2 * Math.PI;
+            } else if (d < -Math.PI) {
+                d += 2 * Math.PI;
+            }
+            winding += d;
+        }
+        int count = n;
+        if (Math.abs (winding) > Math.PI) {
+            double cx = regionX + regionWidth * 0.5;
+            double cy = regionY + regionHeight * 0.5;
+            theta[n] = 0.0;
+            phi[n] = origin.y + cx * rowStep.y + cy * columnStep.y > 0 ? MathUtil.toRad (90) : MathUtil.toRad (-90);
+            ++count;
+        }
+        transformPoints (theta, phi, outX, outY, count);
+        
+        double minY = Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < count; ++i) {
+            minY = Math.min (minY, outY[i]);
+            maxY = Math.max (maxY, outY[i]);
+        }
+        
+        // Bilinear sampling reads the line below each sample, and one line either way
+        // covers the difference between the outline and the sampled rays
+        int lastLine = input.height () - 1;
+        result[0] = (int) Math.max (0.0, Math.min (lastLine, Math.floor (minY) - 1));
+        result[1] = (int) Math.max (0.0, Math.min (lastLine, Math.floor (maxY) + 2));
+    }
+    
+    /**
+     * Transforms the image map to six VR cube faces, as described in 
+     * {@link AbstractCubicTransform#transformToFaces(FaceHandler)}. If the image map is a 
+     * {@link StreamingImage}, the faces are instead split into squares of {@link #STREAM_REGION} 
+     * pixels that are rendered in the order of the image map lines they sample, moving
+     * the window of the image map down as they go, so that the image map is decoded 
+     * once and only the lines sampled by the squares being rendered are in memory.
+     * The faces are kept in {@link Image.Layout#MAPPED} images until their last square
+     * has been rendered, and are passed to the handler one at a time, on the calling thread.
+     * Only {@link Filter#OVERSAMPLING} can be used with a streaming image map.
+     *
+     * @param handler the handler to pass the faces to
+     */
+    @Override
+        public void transformToFaces (final FaceHandler handler) throws Exception {
+        if (!(input instanceof StreamingImage)) {
+            super.transformToFaces (handler);
+            return;
+        }
+        if (filter != Filter.OVERSAMPLING) {
+            throw new IllegalStateException ("The " + filter + " filter needs the whole image map, and can not be used with a StreamingImage");
+        }
+        StreamingImage stream = (StreamingImage) input;
+        
+        // Each region is {face, x, y, width, height, first line, last line}
+        List<int[]> regions = new ArrayList<int[]> ();
+        int[] remaining = new int[FACE_NAMES.length];
+        int[] lines = new int[2];
+        for (int face = 0; face < FACE_NAMES.length; ++face) {
+            view (FACE_VIEWS[face][0], FACE_VIEWS[face][1], FACE_VIEWS[face][2]);
+            for (int y = 0; y < height; y += STREAM_REGION) {
+                for (int x = 0; x < width; x += STREAM_REGION) {
+                    int w = Math.min (STREAM_REGION, width - x);
+                    int h = Math.min (STREAM_REGION, height - y);
+                    inputLines (x, y, w, h, lines);
+                    regions.add (new int[]{ face, x, y, w, h, lines[0], lines[1] });
+                    ++remaining[face];
+                }
+            }
+        }
+        Collections.sort (regions, new Comparator<int[]> () {
+                public int compare (int[] a, int[] b) {
+                    if (a[6] != b[6]) {
+                        return a[6] < b[6] ? -1 : 1;
+                    }
+                    return a[5] < b[5] ? -1 : (a[5] == b[5] ? 0 : 1);
+                }
+            });
+        
+        // The window must keep every line that a later region samples
+        int[] keep = new int[regions.size ()];
+        int first = Integer.MAX_VALUE;
+        for (int i = regions.size () - 1; i >= 0; --i) {
+            first = Math.min (first, regions.get (i)[5]);
+            keep[i] = first;
+        }
+        
+        ImagePool faces = pool != null ? pool : new ImagePool (0);
+        Image[] outputs = new Image[FACE_NAMES.length];
+        try {
+            for (int i = 0; i < regions.size (); ++i) {
+                int[] region = regions.get (i);
+                int face = region[0];
+                stream.window (keep[i], region[6]);
+                if (outputs[face] == null) {
+                    outputs[face] = faces.acquire (width, height, Image.Layout.MAPPED);
+                }
+                view (FACE_VIEWS[face][0], FACE_VIEWS[face][1], FACE_VIEWS[face][2]);
+                transform (outputs[face], region[1], region[2], region[1], region[2], region[3], region[4]);
+                if (--remaining[face] == 0) {
+                    Image output = outputs[face];
+                    outputs[face] = null;
+                    try {
+                        handler.face (FACE_NAMES[face], output);
+                    } finally {
+                        faces.release (output);
+                    }
+                }
+            }
+        } finally {
+            for (Image output : outputs) {
+                faces.release (output);
+            }
+        }
+    }
 
+    /**
+     * Samples the image map at a point, using the fastest sampling method that is
+     * valid for the point. Points outside the image map are black.
+     *
+     * @param inX the x-coordinate to sample
+     * @param inY the y-coordinate to sample
+     * @param interiorMaxX the x-coordinate below which {@link Image#sampleInterior} can be used
+     * @param interiorMaxY the y-coordinate below which {@link Image#sampleInterior} can be used
+     * @param result the sampled value. result[0] = red, result[1] = green, result[2] = blue
+     */
+    private void sample (double inX, double inY, double interiorMaxX, double interiorMaxY, int[] result) {
+        if (inX >= 0 && inX < interiorMaxX && inY >= 0 && inY < interiorMaxY) {
+            input.sampleInterior (inX, inY, result);
+        } else if (inY >= 0 && inY < input.height () && (horizontalWrap || (inX >= 0 && inX < input.width ()))) {
+            if (inY >= input.height () - 1 || (!horizontalWrap && inX >= input.width () - 1)) {
+                input.componentValue ((int) inX, (int) inY, result);
+            } else {
+                input.sampleComponents (inX, inY, result);
+            }
+        } else {
+            result[0] = 0;
+            result[1] = 0;
+            result[2] = 0;
+        }
+    }
+    
+    /**
+     * Samples a high dynamic range image map at a point. Points outside the image map are black.
+     *
+     * @param inX the x-coordinate to sample
+     * @param inY the y-coordinate to sample
+     * @param result the sampled value, where 1.0 is white. result[0] = red, result[1] = green, result[2] = blue
+     */
+    private void sample (double inX, double inY, float[] result) {
+        if (inY >= 0 && inY < input.height () && (horizontalWrap || (inX >= 0 && inX < input.width ()))) {
+            input.sampleComponents (inX, inY, result);
+        } else {
+            result[0] = 0.0f;
+            result[1] = 0.0f;
+            result[2] = 0.0f;
+        }
+    }
+    
+    /**
+     * Chooses the size of the square output tiles that the transformation is split into.
+     * Starts at 256 pixels and halves the size, down to 32 pixels, until there 
+     * are at least eight tiles per processor, so that the tiles covering the poles,
+     * which are more expensive to render, do not leave the other processors idle.
+     *
+     * @param width the width of the output image
+     * @param height the height of the output image
+     * @param processors the number of processors to keep busy
+     * @return the width and height of a tile, in pixels
+     */
+    protected static int tileSize (int width, int height, int processors) {
+        int tileSize = 256;
+        while (tileSize > 32 && 
+            ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize) < processors * 8) {
+            tileSize /= 2;
+        }
+        return tileSize;
+    }
+    
+    /**
+     * Computes the image map coordinates of one row of samples at a time. Each 
+     * stage runs over the whole row and keeps its results in primitive arrays,
+     * so that the loops without calls can be unrolled and vectorized by the JIT compiler.
+     */
+    private final class Scanline {
+        
+        /**
+         * The x-component of each sight ray.
+         */
+        private final double[] rayX;
+        
+        /**
+         * The y-component of each sight ray.
+         */
+        private final double[] rayY;
+        
+        /**
+         * The z-component of each sight ray.
+         */
+        private final double[] rayZ;
+        
+        /**
+         * Length of the projection of each sight ray onto the xz-plane.
+         */
+        private final double[] nxz;
+        
+        /**
+         * The yaw angle of each sight ray, in radians.
+         */
+        private final double[] theta;
+        
+        /**
+         * The pitch angle of each sight ray, in radians.
+         */
+        private final double[] phi;
+        
+        /**
+         * The image map x-coordinate of each sample, in pixels.
+         */
+        final double[] inX;
+        
+        /**
+         * The image map y-coordinate of each sample, in pixels.
+         */
+        final double[] inY;
+        
+        /**
+         * The sight ray through sample (0, 0).
+         */
+        private final Point3D origin;
+        
+        /**
+         * The change in the sight ray from one sample to the next along a row.
+         */
+        private final Point3D rowStep;
+        
+        /**
+         * The change in the sight ray from one row to the next.
+         */
+        private final Point3D columnStep;
+        
+        /**
+         * The inverse cosine function.
+         */
+        private final FastTrigInverse fastAcos;
+        
+        /**
+         * The inverse tangent function.
+         */
+        private final FastTrigInverse fastAtan;
+        
+        /**
+         * The jitter pattern, or null if the samples are not jittered.
+         */
+        private final JitterPattern pattern;
+        
+        /**
+         * Creates buffers for rows of {@code n} samples.
+         *
+         * @param n the largest number of samples to map at once
+         * @param origin the sight ray through sample (0, 0)
+         * @param rowStep the change in the sight ray from one sample to the next along a row
+         * @param columnStep the change in the sight ray from one row to the next
+         * @param fastAcos the inverse cosine function to use
+         * @param fastAtan the inverse tangent function to use
+         * @param pattern the jitter pattern, or null if the samples are not jittered
+         */
+        Scanline (int n, Point3D origin, Point3D rowStep, Point3D columnStep, FastTrigInverse fastAcos, FastTrigInverse fastAtan, JitterPattern pattern) {
+            this.rayX = new double[n];
+            this.rayY = new double[n];
+            this.rayZ = new double[n];
+            this.nxz = new double[n];
+            this.theta = new double[n];
+            this.phi = new double[n];
+            this.inX = new double[n];
+            this.inY = new double[n];
+            this.origin = origin;
+            this.rowStep = rowStep;
+            this.columnStep = columnStep;
+            this.fastAcos = fastAcos;
+            this.fastAtan = fastAtan;
+            this.pattern = pattern;
+        }
+        
+        /**
+         * Computes the image map coordinates of a row of samples into {@link #inX}
+         * and {@link #inY}.
+         *
+         * @param x0 the x-coordinate of the first sample
+         * @param y the y-coordinate of the row
+         * @param n the number of samples
+         */
+        void map (int x0, int y, int n) {
+            final double bx = origin.x + y * columnStep.x;
+            final double by = origin.y + y * columnStep.y;
+            final double bz = origin.z + y * columnStep.z;
+            final double sx = rowStep.x;
+            final double sy = rowStep.y;
+            final double sz = rowStep.z;
+            
+            if (pattern != null) {
+                for (int i = 0; i < n; ++i) {
+                    double jx = x0 + i + pattern.x (x0 + i, y) * jitter;
+                    double jy = pattern.y (x0 + i, y) * jitter;
+                    rayX[i] = bx + jx * sx + jy * columnStep.x;
+                    rayY[i] = by + jx * sy + jy * columnStep.y;
+                    rayZ[i] = bz + jx * sz + jy * columnStep.z;
+                }
+            } else {
+                for (int i = 0; i < n; ++i) {
+                    double s = x0 + i;
+                    rayX[i] = bx + s * sx;
+                    rayY[i] = by + s * sy;
+                    rayZ[i] = bz + s * sz;
+                }
+            }
+            
+            project (n);
+        }
+        
+        /**
+         * Computes the image map coordinates of samples at arbitrary positions 
+         * into {@link #inX} and {@link #inY}.
+         *
+         * @param x the x-coordinate of each sample
+         * @param y the y-coordinate of each sample
+         * @param n the number of samples
+         */
+        void map (double[] x, double[] y, int n) {
+            for (int i = 0; i < n; ++i) {
+                rayX[i] = origin.x + x[i] * rowStep.x + y[i] * columnStep.x;
+                rayY[i] = origin.y + x[i] * rowStep.y + y[i] * columnStep.y;
+                rayZ[i] = origin.z + x[i] * rowStep.z + y[i] * columnStep.z;
+            }
+            
+            project (n);
+        }
+        
+        /**
+         * Computes the image map coordinates of the first {@code n} sight rays.
+         *
+         * @param n the number of sight rays
+         */
+        private void project (int n) {
+            if (kernel == Kernel.POLYNOMIAL) {
+                for (int i = 0; i < n; ++i) {
+                    nxz[i] = Math.sqrt (rayX[i] * rayX[i] + rayZ[i] * rayZ[i]);
+                }
+                FastTrigInverse.atan2 (rayY, nxz, phi, n);
+                FastTrigInverse.atan2 (rayX, rayZ, theta, n);
+                transformPoints (theta, phi, inX, inY, n);
+                return;
+            }
+            
+            for (int i = 0; i < n; ++i) {
+                double len = Math.sqrt (rayX[i] * rayX[i] + rayZ[i] * rayZ[i]);
+                nxz[i] = len;
+                phi[i] = rayY[i] / len;
+                theta[i] = rayZ[i] / len;
+            }
+            
+            for (int i = 0; i < n; ++i) {
+                if (nxz[i] < Double.MIN_NORMAL) {
+                    theta[i] = 0.0;
+                    phi[i] = rayY[i] > 0 ? MathUtil.toRad (90) : MathUtil.toRad (-90);
+                } else {
+                    phi[i] = fastAtan.f (phi[i]);
+                    double t = fastAcos.f (theta[i]);
+                    theta[i] = rayX[i] < 0 ? -t : t;
+                }
+            }
+            
+            transformPoints (theta, phi, inX, inY, n);
+        }
+    }
+    
+    /**
+     * Transforms a row of rays in 3d-space to image map coordinates. The default
+     * implementation calls {@link #transformPoint} for each ray. Subclasses can
+     * override it with a loop that the JIT compiler can vectorize.
+     *
+     * @param theta the yaw angle of each ray, in radians
+     * @param phi the pitch angle of each ray, in radians
+     * @param outX the image map x-coordinate of each ray, in pixels
+     * @param outY the image map y-coordinate of each ray, in pixels
+     * @param n the number of rays
+     */
+    protected void transformPoints (double[] theta, double[] phi, double[] outX, double[] outY, int n) {
+        Point2D p = new Point2D ();
+        for (int i = 0; i < n; ++i) {
+            transformPoint (theta[i], phi[i], p);
+            outX[i] = p.x;
+            outY[i] = p.y;
+        }
+    }
+    
     /**
      * Transforms a ray in 3d-space, given by {@code theta} and {@code phi} to 
      * image map coordinates.
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.util.Arrays;
+
+/**
+ * Renders the tiles of the cube face pyramids of an image map on demand, without
+ * rendering the faces or the pyramids first. Each tile is rendered straight from
+ * the image map at the resolution of its level, computing only the pixels of
+ * that tile, so tiles that are never requested cost nothing.
+ * <p>
+ * The levels and tiles are the same as those written by {@link MakeImagePyramid}
+ * for the {@code facemap} transforms: level 0 is the full face, each following level
+ * is half the size of the one before, not counting the overlap, and tiles are
+ * {@code tileSize + overlap} pixels, with partial tiles at the right and bottom
+ * edges padded with black. With the DZI level numbering, level {@code zoom} is
+ * stored in folder {@code levels - zoom - 1}.
+ * <p>
+ * The level images are not reduced from the full face, so each level must be
+ * filtered to its own resolution when sampling the image map. The source sets the
+ * transform's filter to {@link AbstractSphericalCubicTransform.Filter#ANISOTROPIC}
+ * unless a mip-mapped filter has already been chosen. The mip-map of the image
+ * map is built by the first tile and reused by the rest.
+ * <p>
+ * The source owns the transform: the view and size of the transform are changed
+ * for each tile, so it must not be used for anything else. Tiles are rendered one
+ * at a time, each using the executor of the transform.
+ */
+public class CubeTileSource {
+    
+    /**
+     * The transform used to render the tiles.
+     */
+    private final AbstractSphericalCubicTransform<?> transform;
+    
+    /**
+     * Width and height of a tile, in pixels, including the overlap.
+     */
+    private final int tileSize;
+    
+    /**
+     * Number of pixels that neighbouring tiles overlap.
+     */
+    private final int overlap;
+    
+    /**
+     * Width and height of the face at each level, in pixels, including the overlap.
+     */
+    private final int[] levelSizes;
+    
+    /**
+     * Creates a tile source. The input, offsets and the sampling parameters of the
+     * transform must be set, and are used for every tile. The field of view of the
+     * transform is set to 90 degrees.
+     *
+     * @param transform the transform to render with
+     * @param faceSize the width and height of the full face, not counting the overlap
+     * @param tileSize the width and height of a tile, not counting the overlap
+     * @param overlap the number of pixels that neighbouring tiles overlap
+     * @param levels the number of levels in the pyramid of each face
+     */
+    public CubeTileSource (AbstractSphericalCubicTransform<?> transform, int faceSize, int tileSize, int overlap, int levels) {
+        if (levels < 1) {
+            throw new IllegalArgumentException ("levels < 1 : " + levels);
+        }
+        if (tileSize < 1 || overlap < 0) {
+            throw new IllegalArgumentException ("Invalid tile size " + tileSize + " with overlap " + overlap);
+        }
+        this.transform = transform;
+        this.tileSize = tileSize + overlap;
+        this.overlap = overlap;
+        this.levelSizes = new int[levels];
+        
+        int size = faceSize + overlap;
+        for (int zoom = 0; zoom < levels; ++zoom) {
+            levelSizes[zoom] = size;
+            size = (size - overlap) / 2 + overlap;
+        }
+        
+        transform.vfov (90);
+        if (transform.filter == AbstractSphericalCubicTransform.Filter.OVERSAMPLING) {
+            transform.filter (AbstractSphericalCubicTransform.Filter.ANISOTROPIC);
+        }
+    }
+    
+    /**
+     * Names of the faces: "face_f", "face_r", "face_b", "face_l", "face_u" and "face_d",
+     * for "Front", "Right", "Back", "Left", "Up" and "Down" respectively.
+     */
+    public String[] faces () {
+        return AbstractCubicTransform.FACE_NAMES.clone ();
+    }
+    
+    /**
+     * Number of levels in the pyramid of each face.
+     */
+    public int levels () {
+        return levelSizes.length;
+    }
+    
+    /**
+     * Width and height of a tile, in pixels, including the overlap.
+     */
+    public int tileSize () {
+        return tileSize;
+    }
+    
+    /**
+     * Width and height of a face at a level, in pixels, including the overlap.
+     *
+     * @param zoom the level, where 0 is the full face
+     */
+    public int levelSize (int zoom) {
+        return levelSizes[zoom];
+    }
+    
+    /**
+     * Number of tiles along each side of a face at a level.
+     *
+     * @param zoom the level, where 0 is the full face
+     */
+    public int tiles (int zoom) {
+        int step = tileSize - overlap;
+        return (levelSizes[zoom] - overlap + step - 1) / step;
+    }
+    
+    /**
+     * Renders a tile.
+     *
+     * @param face the name of the face, as returned by {@link #faces()}
+     * @param zoom the level, where 0 is the full face
+     * @param tx the column of the tile
+     * @param ty the row of the tile
+     * @return the tile, {@link #tileSize()} pixels wide and high
+     */
+    public synchronized Image tile (String face, int zoom, int tx, int ty) throws Exception {
+        int f = face (face);
+        if (zoom < 0 || zoom >= levelSizes.length) {
+            throw new IllegalArgumentException ("Level " + zoom + " is not in [0, " + levelSizes.length + ")");
+        }
+        if (tx < 0 || ty < 0 || tx >= tiles (zoom) || ty >= tiles (zoom)) {
+            throw new IllegalArgumentException ("Tile " + tx + "," + ty + " is not on level " + zoom + ", which has " + tiles (zoom) + "x" + tiles (zoom) + " tiles");
+        }
+        
+        int size = levelSizes[zoom];
+        int x = tx * (tileSize - overlap);
+        int y = ty * (tileSize - overlap);
+        int w = Math.min (x + tileSize, size) - x;
+        int h = Math.min (y + tileSize, size) - y;
+        
+        double[] view = AbstractCubicTransform.FACE_VIEWS[f];
+        transform.size (size, size);
+        transform.view (view[0], view[1], view[2]);
+        
+        // New images are black, which pads partial tiles
+        Image tile = Image.create (tileSize, tileSize, transform.outputLayout ());
+        transform.transform (tile, 0, 0, x, y, w, h);
+        return tile;
+    }
+    
+    /**
+     * Renders a whole face at any size, with the same filtering as the tiles.
+     * Used for poster images and previews.
+     *
+     * @param face the name of the face, as returned by {@link #faces()}
+     * @param size the width and height of the image, in pixels
+     * @return the face
+     */
+    public synchronized Image face (String face, int size) throws Exception {
+        double[] view = AbstractCubicTransform.FACE_VIEWS[face (face)];
+        transform.size (size, size);
+        transform.view (view[0], view[1], view[2]);
+        return transform.transform (Image.create (size, size, transform.outputLayout ()));
+    }
+    
+    /**
+     * Finds the index of a face in {@link AbstractCubicTransform#FACE_NAMES}.
+     *
+     * @param face the name of the face
+     * @throws IllegalArgumentException if there is no face with that name
+     */
+    private int face (String face) {
+        int f = Arrays.asList (AbstractCubicTransform.FACE_NAMES).indexOf (face);
+        if (f < 0) {
+            throw new IllegalArgumentException ("Unknown face: " + face);
+        }
+        return f;
+    }
+}
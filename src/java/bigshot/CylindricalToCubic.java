@@ -55,6 +55,19 @@ public class CylindricalToCubic extends AbstractSphericalCubicTransform<Cylindri
         output.y = Math.tan (phi) / Math.tan (inputVfov / 2) * (input.height () / 2) + inputHorizon;
     }
     
+    @Override
+        protected void transformPoints (double[] theta, double[] phi, double[] outX, double[] outY, int n) {
+        final double halfHfov = inputHfov / 2;
+        final double tanHalfVfov = Math.tan (inputVfov / 2);
+        final int halfWidth = input.width () / 2;
+        final int halfHeight = input.height () / 2;
+        final int horizon = inputHorizon;
+        for (int i = 0; i < n; ++i) {
+            outX[i] = (theta[i] / halfHfov) * halfWidth + halfWidth;
+            outY[i] = Math.tan (phi[i]) / tanHalfVfov * halfHeight + horizon;
+        }
+    }
+    
     /**
      * Convenience function to load an image from a file.
      *
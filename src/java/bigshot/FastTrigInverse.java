@@ -16,13 +16,55 @@
 package bigshot;
 
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Fast inverse trigonometric functions based on lookup tables and
- * linear interpolation between lookup table values.
+ * linear interpolation between lookup table values. {@link FastAcos} and 
+ * {@link FastAtan} search a table of function values for the input value. 
+ * {@link GridAcos} and {@link GridAtan} index a table of uniformly spaced input
+ * values directly, and are accurate to a given maximum error.
+ * <p>
+ * The functions are immutable once created, and can be shared between threads.
+ * The static factory methods {@link #acos(int)}, {@link #atan(int)}, {@link #gridAcos(double)}
+ * and {@link #gridAtan(double)} return functions from a cache, so that transforms with 
+ * the same parameters only compute the tables once.
  */
 public class FastTrigInverse {
     
+    /**
+     * Maximum total number of table entries held by the cache.
+     */
+    private final static int CACHE_ENTRIES = 1 << 22;
+    
+    /**
+     * Coefficients of the polynomial in <code>t<sup>2</sup></code> that approximates
+     * <code>arctan(t) / t</code> over [0, 1], lowest order first. Fitted at 
+     * Chebyshev nodes, with a maximum error of <code>10<sup>-8</sup></code> radians
+     * for arctan.
+     */
+    private final static double A0 =  0.9999999817886558;
+    private final static double A1 = -0.33333036709286523;
+    private final static double A2 =  0.19991872029106397;
+    private final static double A3 = -0.14197797794029038;
+    private final static double A4 =  0.10618370636650384;
+    private final static double A5 = -0.07456854825240279;
+    private final static double A6 =  0.04213762357919437;
+    private final static double A7 = -0.015731249115594644;
+    private final static double A8 =  0.0027662835000317586;
+    
+    /**
+     * Cached functions, by key, in least-recently-used order.
+     */
+    private final static LinkedHashMap<String,FastTrigInverse> cache = new LinkedHashMap<String,FastTrigInverse> (16, 0.75f, true);
+    
+    /**
+     * Total number of table entries held by the cache.
+     */
+    private static long cachedEntries = 0;
+    
     /**
      * The lookup table.
      */
@@ -39,8 +81,135 @@ public class FastTrigInverse {
      * @param resolution the resolution of the lookup table
      */
     public FastTrigInverse (int resolution) {
-        lookup = new double[resolution + 1];
-        step = Math.PI / resolution;
+        this (resolution, Math.PI / resolution);
+    }
+    
+    /**
+     * Creates a new function object with a given interval between input values.
+     *
+     * @param resolution the resolution of the lookup table
+     * @param step the interval between two input values in the lookup table
+     */
+    protected FastTrigInverse (int resolution, double step) {
+        this.lookup = new double[resolution + 1];
+        this.step = step;
+    }
+    
+    /**
+     * Gets a function from the cache.
+     *
+     * @param key the function name and parameters
+     * @return the function, or null if it is not in the cache
+     */
+    private static synchronized FastTrigInverse cached (String key) {
+        return cache.get (key);
+    }
+    
+    /**
+     * Puts a function in the cache, evicting the least recently used functions
+     * until the tables fit in {@link #CACHE_ENTRIES} entries. If another thread 
+     * has already cached a function with the same key, that function is returned instead.
+     *
+     * @param key the function name and parameters
+     * @param function the function
+     * @return the cached function
+     */
+    private static synchronized FastTrigInverse cache (String key, FastTrigInverse function) {
+        FastTrigInverse existing = cache.get (key);
+        if (existing != null) {
+            return existing;
+        }
+        cache.put (key, function);
+        cachedEntries += function.lookup.length;
+        Iterator<Map.Entry<String,FastTrigInverse>> iter = cache.entrySet ().iterator ();
+        while (cachedEntries > CACHE_ENTRIES && cache.size () > 1) {
+            Map.Entry<String,FastTrigInverse> eldest = iter.next ();
+            cachedEntries -= eldest.getValue ().lookup.length;
+            iter.remove ();
+        }
+        return function;
+    }
+    
+    /**
+     * Returns a shared {@link FastAcos} with the given resolution.
+     *
+     * @param resolution the resolution of the lookup table
+     */
+    public static FastAcos acos (int resolution) {
+        String key = "acos " + resolution;
+        FastTrigInverse f = cached (key);
+        if (f == null) {
+            f = cache (key, new FastAcos (resolution));
+        }
+        return (FastAcos) f;
+    }
+    
+    /**
+     * Returns a shared {@link FastAtan} with the given resolution.
+     *
+     * @param resolution the resolution of the lookup table
+     */
+    public static FastAtan atan (int resolution) {
+        String key = "atan " + resolution;
+        FastTrigInverse f = cached (key);
+        if (f == null) {
+            f = cache (key, new FastAtan (resolution));
+        }
+        return (FastAtan) f;
+    }
+    
+    /**
+     * Returns a shared {@link GridAcos} with the given maximum error.
+     *
+     * @param maxError the maximum absolute error of the result, in radians
+     */
+    public static GridAcos gridAcos (double maxError) {
+        String key = "gridAcos " + maxError;
+        FastTrigInverse f = cached (key);
+        if (f == null) {
+            f = cache (key, new GridAcos (maxError));
+        }
+        return (GridAcos) f;
+    }
+    
+    /**
+     * Returns a shared {@link GridAtan} with the given maximum error.
+     *
+     * @param maxError the maximum absolute error of the result, in radians
+     */
+    public static GridAtan gridAtan (double maxError) {
+        String key = "gridAtan " + maxError;
+        FastTrigInverse f = cached (key);
+        if (f == null) {
+            f = cache (key, new GridAtan (maxError));
+        }
+        return (GridAtan) f;
+    }
+    
+    /**
+     * Computes <code>atan2(y[i], x[i])</code> for the first {@code n} elements
+     * of two arrays, with a maximum error of <code>10<sup>-8</sup></code> radians. 
+     * The ratio of the smaller to the larger absolute value is passed through a 
+     * polynomial, and the octant is restored with selects rather than branches, 
+     * so the loop contains no calls or table lookups and can be vectorized 
+     * by the JIT compiler. Returns zero where both inputs are zero.
+     *
+     * @param y the y-coordinates
+     * @param x the x-coordinates
+     * @param result the angles, in radians, in the interval [-&pi;, &pi;]
+     * @param n the number of elements
+     */
+    public static void atan2 (double[] y, double[] x, double[] result, int n) {
+        for (int i = 0; i < n; ++i) {
+            double ax = Math.abs (x[i]);
+            double ay = Math.abs (y[i]);
+            double t = Math.min (ax, ay) / Math.max (Math.max (ax, ay), Double.MIN_NORMAL);
+            double t2 = t * t;
+            double r = t * (A0 + t2 * (A1 + t2 * (A2 + t2 * (A3 + t2 * (A4 + t2 * (A5 + t2 * (A6 + t2 * (A7 + t2 * A8))))))));
+            r = ay > ax ? (Math.PI / 2) - r : r;
+            r = x[i] < 0 ? Math.PI - r : r;
+            result[i] = Math.copySign (r, y[i]);
+        }
     }
     
     /**
@@ -128,6 +297,104 @@ public class FastTrigInverse {
             return super.f (v) - (Math.PI / 2);
         }
     }
+    
+    /**
+     * Fast inverse-tangent. Reduces the input to the interval [0, 1] and 
+     * interpolates linearly in a table of arctan values at uniformly spaced 
+     * inputs, so no search is needed.
+     */
+    public static class GridAtan extends FastTrigInverse {
+        
+        /**
+         * Creates a new fast arctan object.
+         *
+         * @param maxError the maximum absolute error of the result, in radians
+         */
+        public GridAtan (double maxError) {
+            this (resolution (maxError));
+        }
+        
+        /**
+         * Creates a new fast arctan object with a table of arctan values for
+         * {@code resolution + 1} uniformly spaced inputs in [0, 1].
+         */
+        private GridAtan (int resolution) {
+            super (resolution, 1.0 / resolution);
+            for (int i = 0; i <= resolution; ++i) {
+                lookup[i] = Math.atan (i * step);
+            }
+        }
+        
+        /**
+         * Computes the number of intervals needed to interpolate arctan over
+         * [0, 1] with a given maximum error. The error of linear interpolation 
+         * is at most <code>step<sup>2</sup> / 8</code> times the largest second 
+         * derivative of arctan in the interval, which is <code>3 &radic;3 / 8</code>.
+         *
+         * @param maxError the maximum absolute error, in radians
+         */
+        private static int resolution (double maxError) {
+            if (maxError <= 0.0) {
+                throw new IllegalArgumentException ("maxError <= 0 : " + maxError);
+            }
+            double maxSecondDerivative = 3 * Math.sqrt (3) / 8;
+            return Math.max (2, (int) Math.ceil (Math.sqrt (maxSecondDerivative / (8 * maxError))));
+        }
+        
+        /**
+         * Computes an approximation to arctan(v)
+         *
+         * @param v the value
+         * @return arctan(v)
+         */
+        public double f (double v) {
+            double a = v < 0 ? -v : v;
+            boolean reciprocal = a > 1.0;
+            if (reciprocal) {
+                a = 1.0 / a;
+            }
+            double p = a * (lookup.length - 1);
+            int i = (int) p;
+            double r;
+            if (i < lookup.length - 1) {
+                r = lookup[i] + (p - i) * (lookup[i + 1] - lookup[i]);
+            } else {
+                r = lookup[lookup.length - 1];
+            }
+            if (reciprocal) {
+                r = (Math.PI / 2) - r;
+            }
+            return v < 0 ? -r : r;
+        }
+    }
+    
+    /**
+     * Fast inverse-cosine. Computes <code>arccos(v)</code> as 
+     * <code>&pi; / 2 - arctan(v / &radic;(1 - v<sup>2</sup>))</code>
+     * using {@link GridAtan}, which avoids the unbounded slope of arccos 
+     * near -1 and 1.
+     */
+    public static class GridAcos extends GridAtan {
+        
+        /**
+         * Creates a new fast arccos object.
+         *
+         * @param maxError the maximum absolute error of the result, in radians
+         */
+        public GridAcos (double maxError) {
+            super (maxError);
+        }
+        
+        /**
+         * Computes an approximation to arccos(v)
+         *
+         * @param v the value, in the interval [-1, 1]
+         * @return arccos(v)
+         */
+        public double f (double v) {
+            return (Math.PI / 2) - super.f (v / Math.sqrt (1 - v * v));
+        }
+    }
 }
 
 
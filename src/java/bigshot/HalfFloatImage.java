@@ -0,0 +1,421 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+
+/**
+ * A high dynamic range RGB image that stores each channel as 16-bit
+ * half-precision floats, in a separate array per channel. 1.0 is white, but
+ * channel values can be much brighter than that. The image uses half the memory
+ * of a 32-bit float image, and the same amount of memory as a {@link PlanarImage}.
+ * <p>
+ * Half floats are decoded using a lookup table with one entry per 16-bit
+ * value, so sampling costs about as much as sampling a {@link PlanarImage}.
+ * The integer methods of {@link Image} see the image clamped to the
+ * 8-bit range, so writing the image tone maps it by clipping.
+ */
+public class HalfFloatImage extends Image {
+    
+    /**
+     * The float value of each half float bit pattern.
+     */
+    private final static float[] TO_FLOAT = new float[1 << 16];
+    
+    static {
+        for (int i = 0; i < TO_FLOAT.length; ++i) {
+            TO_FLOAT[i] = toFloat (i);
+        }
+    }
+    
+    /**
+     * Red channel data.
+     */
+    private final short[] red;
+    
+    /**
+     * Green channel data.
+     */
+    private final short[] green;
+    
+    /**
+     * Blue channel data.
+     */
+    private final short[] blue;
+    
+    /**
+     * Creates an empty (all-black) image with the given width and height.
+     */
+    public HalfFloatImage (int width, int height) {
+        super (width, height, (int[]) null);
+        this.red = new short[width * height];
+        this.green = new short[width * height];
+        this.blue = new short[width * height];
+    }
+    
+    /**
+     * Converts a half float bit pattern to a float.
+     *
+     * @param h the half float, in the lower 16 bits
+     * @return the float value
+     */
+    private static float toFloat (int h) {
+        int sign = (h & 0x8000) << 16;
+        int exponent = (h >> 10) & 0x1f;
+        int mantissa = h & 0x03ff;
+        if (exponent == 0) {
+            float v = mantissa * (1.0f / (1 << 24));
+            return sign == 0 ? v : -v;
+        } else if (exponent == 0x1f) {
+            return Float.intBitsToFloat (sign | 0x7f800000 | (mantissa << 13));
+        } else {
+            return Float.intBitsToFloat (sign | ((exponent + 112) << 23) | (mantissa << 13));
+        }
+    }
+    
+    /**
+     * Converts a float to the nearest half float. Values too large for
+     * a half float become infinite.
+     *
+     * @param f the float to convert
+     * @return the half float bit pattern
+     */
+    public static short toHalf (float f) {
+        int bits = Float.floatToIntBits (f);
+        int sign = (bits >>> 16) & 0x8000;
+        int magnitude = bits & 0x7fffffff;
+        if (magnitude >= 0x7f800000) {
+            // Infinity or NaN
+            return (short) (sign | 0x7c00 | (magnitude > 0x7f800000 ? 0x200 : 0));
+        }
+        // Round to nearest by adding half of the discarded mantissa bits
+        int rounded = magnitude + 0x1000;
+        if (rounded >= 0x47800000) {
+            return (short) (sign | 0x7c00);
+        }
+        if (rounded >= 0x38800000) {
+            return (short) (sign | ((rounded - 0x38000000) >> 13));
+        }
+        if (magnitude < 0x33000000) {
+            return (short) sign;
+        }
+        // Subnormal half
+        int exponent = magnitude >> 23;
+        int mantissa = (magnitude & 0x7fffff) | 0x800000;
+        return (short) (sign | ((mantissa + (0x800000 >> (exponent - 102))) >> (126 - exponent)));
+    }
+    
+    /**
+     * Creates an image from a buffered image. Images whose color model stores gray
+     * or RGB samples directly are read with {@link #fromRaster(Raster)}, so they
+     * keep their full precision. Other images, such as palette images, are converted
+     * to 8-bit RGB through their color model.
+     *
+     * @param image the image to read
+     * @return the image
+     */
+    public static HalfFloatImage fromBuffered (BufferedImage image) {
+        ColorModel cm = image.getColorModel ();
+        int colorSpace = cm.getColorSpace ().getType ();
+        if ((cm instanceof ComponentColorModel || cm instanceof DirectColorModel) 
+            && (colorSpace == ColorSpace.TYPE_RGB || colorSpace == ColorSpace.TYPE_GRAY)) {
+            return fromRaster (image.getRaster ());
+        }
+        
+        short[] levels = new short[256];
+        for (int i = 0; i < levels.length; ++i) {
+            levels[i] = toHalf (i / 255.0f);
+        }
+        
+        int width = image.getWidth ();
+        int height = image.getHeight ();
+        HalfFloatImage result = new HalfFloatImage (width, height);
+        int[] line = new int[width];
+        for (int y = 0; y < height; ++y) {
+            image.getRGB (0, y, width, 1, line, 0, width);
+            int wp = y * width;
+            for (int x = 0; x < width; ++x) {
+                int v = line[x];
+                result.red[wp] = levels[(v >> 16) & 0xff];
+                result.green[wp] = levels[(v >> 8) & 0xff];
+                result.blue[wp] = levels[v & 0xff];
+                ++wp;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Creates an image from a raster. Rasters with floating-point samples are
+     * used as-is, integer samples are scaled so that the largest sample value
+     * becomes 1.0. Rasters with one or two bands are read as grayscale.
+     * Bands after the third, such as alpha, are ignored. The samples are taken
+     * to be gray or RGB values; use {@link #fromBuffered(BufferedImage)} for
+     * images with other color models, such as palette images.
+     *
+     * @param raster the raster to read
+     * @return the image
+     */
+    public static HalfFloatImage fromRaster (Raster raster) {
+        int width = raster.getWidth ();
+        int height = raster.getHeight ();
+        int numBands = raster.getNumBands ();
+        SampleModel sm = raster.getSampleModel ();
+        
+        int[] bands = new int[3];
+        float[] scale = new float[3];
+        for (int c = 0; c < 3; ++c) {
+            bands[c] = numBands < 3 ? 0 : c;
+            int dataType = sm.getDataType ();
+            if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE) {
+                scale[c] = 1.0f;
+            } else {
+                scale[c] = 1.0f / ((1L << sm.getSampleSize (bands[c])) - 1);
+            }
+        }
+        
+        HalfFloatImage result = new HalfFloatImage (width, height);
+        float[] line = new float[width * numBands];
+        for (int y = 0; y < height; ++y) {
+            raster.getPixels (raster.getMinX (), raster.getMinY () + y, width, 1, line);
+            int wp = y * width;
+            int rp = 0;
+            for (int x = 0; x < width; ++x) {
+                result.red[wp] = toHalf (line[rp + bands[0]] * scale[0]);
+                result.green[wp] = toHalf (line[rp + bands[1]] * scale[1]);
+                result.blue[wp] = toHalf (line[rp + bands[2]] * scale[2]);
+                rp += numBands;
+                ++wp;
+            }
+        }
+        return result;
+    }
+    
+    @Override
+        public Layout layout () {
+        return Layout.HALF_FLOAT;
+    }
+    
+    @Override
+        public boolean isHighDynamicRange () {
+        return true;
+    }
+    
+    @Override
+        public void componentValue (int x, int y, float[] result) {
+        int i = index (x, y);
+        result[0] = TO_FLOAT[red[i] & 0xffff];
+        result[1] = TO_FLOAT[green[i] & 0xffff];
+        result[2] = TO_FLOAT[blue[i] & 0xffff];
+    }
+    
+    @Override
+        public void componentValue (int x, int y, float r, float g, float b) {
+        int i = y * width + x;
+        red[i] = toHalf (r);
+        green[i] = toHalf (g);
+        blue[i] = toHalf (b);
+    }
+    
+    @Override
+        public void sampleComponents (double x, double y, float[] result) {
+        int x0 = (int) x;
+        int y0 = (int) y;
+        float xf = (float) (x - x0);
+        float yf = (float) (y - y0);
+        
+        int i00 = index (x0, y0);
+        int i10 = index (x0 + 1, y0);
+        int i01 = index (x0, y0 + 1);
+        int i11 = index (x0 + 1, y0 + 1);
+        
+        result[0] = lerp2 (red, i00, i10, i01, i11, xf, yf);
+        result[1] = lerp2 (green, i00, i10, i01, i11, xf, yf);
+        result[2] = lerp2 (blue, i00, i10, i01, i11, xf, yf);
+    }
+    
+    /**
+     * Bilinearly interpolates four half float values of a channel.
+     *
+     * @param channel the channel data
+     * @param i00 the index of the value at (0, 0)
+     * @param i10 the index of the value at (1, 0)
+     * @param i01 the index of the value at (0, 1)
+     * @param i11 the index of the value at (1, 1)
+     * @param xf the x-coordinate in the interval [0, 1]
+     * @param yf the y-coordinate in the interval [0, 1]
+     * @return the interpolated value
+     */
+    private static float lerp2 (short[] channel, int i00, int i10, int i01, int i11, float xf, float yf) {
+        float v00 = TO_FLOAT[channel[i00] & 0xffff];
+        float v10 = TO_FLOAT[channel[i10] & 0xffff];
+        float v01 = TO_FLOAT[channel[i01] & 0xffff];
+        float v11 = TO_FLOAT[channel[i11] & 0xffff];
+        float top = v00 + (v10 - v00) * xf;
+        float bottom = v01 + (v11 - v01) * xf;
+        return top + (bottom - top) * yf;
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int[] result) {
+        int i = index (x, y);
+        result[0] = toComponent (TO_FLOAT[red[i] & 0xffff]);
+        result[1] = toComponent (TO_FLOAT[green[i] & 0xffff]);
+        result[2] = toComponent (TO_FLOAT[blue[i] & 0xffff]);
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int r, int g, int b) {
+        componentValue (x, y, r / WHITE, g / WHITE, b / WHITE);
+    }
+    
+    @Override
+        public int value (int x, int y) {
+        int i = index (x, y);
+        return
+            (toComponent (TO_FLOAT[red[i] & 0xffff]) << RED) |
+            (toComponent (TO_FLOAT[green[i] & 0xffff]) << GREEN) |
+            (toComponent (TO_FLOAT[blue[i] & 0xffff]) << BLUE);
+    }
+    
+    @Override
+        public void value (int x, int y, int v) {
+        componentValue (x, y, (v >> RED) & COMPONENT_MASK, (v >> GREEN) & COMPONENT_MASK, (v >> BLUE) & COMPONENT_MASK);
+    }
+    
+    @Override
+        public void sampleComponents (double x, double y, int[] result) {
+        int x0 = (int) x;
+        int y0 = (int) y;
+        float xf = (float) (x - x0);
+        float yf = (float) (y - y0);
+        
+        int i00 = index (x0, y0);
+        int i10 = index (x0 + 1, y0);
+        int i01 = index (x0, y0 + 1);
+        int i11 = index (x0 + 1, y0 + 1);
+        
+        result[0] = toComponent (lerp2 (red, i00, i10, i01, i11, xf, yf));
+        result[1] = toComponent (lerp2 (green, i00, i10, i01, i11, xf, yf));
+        result[2] = toComponent (lerp2 (blue, i00, i10, i01, i11, xf, yf));
+    }
+    
+    @Override
+        public void multiply (int y0, int y1, int num, int denom) {
+        float factor = (float) num / denom;
+        for (int i = y0 * width; i < y1 * width; ++i) {
+            red[i] = toHalf (TO_FLOAT[red[i] & 0xffff] * factor);
+            green[i] = toHalf (TO_FLOAT[green[i] & 0xffff] * factor);
+            blue[i] = toHalf (TO_FLOAT[blue[i] & 0xffff] * factor);
+        }
+    }
+    
+    /**
+     * Applies a pixel operation in floating point, so that channel values above
+     * 1.0 keep their range instead of being clamped by the lookup tables.
+     */
+    @Override
+        public void apply (int y0, int y1, PixelOperation operation) {
+        for (int i = y0 * width; i < y1 * width; ++i) {
+            red[i] = toHalf (operation.apply (0, TO_FLOAT[red[i] & 0xffff]));
+            green[i] = toHalf (operation.apply (1, TO_FLOAT[green[i] & 0xffff]));
+            blue[i] = toHalf (operation.apply (2, TO_FLOAT[blue[i] & 0xffff]));
+        }
+    }
+    
+    /**
+     * Maps each channel through a lookup table, interpolating linearly
+     * between table entries. The tables are indexed by 8-bit channel values, so
+     * channel values beyond the end of the table are clamped to it.
+     */
+    @Override
+        public void apply (int y0, int y1, int[] redTable, int[] greenTable, int[] blueTable) {
+        for (int i = y0 * width; i < y1 * width; ++i) {
+            red[i] = lookup (redTable, red[i]);
+            green[i] = lookup (greenTable, green[i]);
+            blue[i] = lookup (blueTable, blue[i]);
+        }
+    }
+    
+    /**
+     * Maps a half float channel value through a lookup table.
+     */
+    private static short lookup (int[] table, short h) {
+        float v = TO_FLOAT[h & 0xffff] * WHITE;
+        if (!(v > 0.0f)) {
+            return toHalf (table[0] / WHITE);
+        }
+        if (v >= table.length - 1) {
+            return toHalf (table[table.length - 1] / WHITE);
+        }
+        int i = (int) v;
+        float f = v - i;
+        return toHalf ((table[i] + (table[i + 1] - table[i]) * f) / WHITE);
+    }
+    
+    @Override
+        public void blend (int y0, int y1, Image other, double alpha) {
+        float a = (float) alpha;
+        float a1 = 1.0f - a;
+        float[] o = new float[3];
+        for (int y = y0; y < y1; ++y) {
+            int i = y * width;
+            for (int x = 0; x < width; ++x) {
+                other.componentValue (x, y, o);
+                red[i] = toHalf (TO_FLOAT[red[i] & 0xffff] * a1 + o[0] * a);
+                green[i] = toHalf (TO_FLOAT[green[i] & 0xffff] * a1 + o[1] * a);
+                blue[i] = toHalf (TO_FLOAT[blue[i] & 0xffff] * a1 + o[2] * a);
+                ++i;
+            }
+        }
+    }
+    
+    @Override
+        public void readLine (int y, int[] line) {
+        int rp = y * width;
+        for (int x = 0; x < width; ++x) {
+            line[x] =
+                (toComponent (TO_FLOAT[red[rp] & 0xffff]) << 16) |
+                (toComponent (TO_FLOAT[green[rp] & 0xffff]) << 8) |
+                toComponent (TO_FLOAT[blue[rp] & 0xffff]);
+            ++rp;
+        }
+    }
+    
+    @Override
+        public void writeLine (int y, int[] line) {
+        int wp = y * width;
+        for (int x = 0; x < width; ++x) {
+            int v = line[x];
+            red[wp] = toHalf (((v >> 16) & 0xff) / WHITE);
+            green[wp] = toHalf (((v >> 8) & 0xff) / WHITE);
+            blue[wp] = toHalf ((v & 0xff) / WHITE);
+            ++wp;
+        }
+    }
+    
+    @Override
+        public BufferedImage asBuffered () throws Exception {
+        return toBuffered ();
+    }
+}
@@ -17,77 +17,309 @@ package bigshot;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import javax.imageio.ImageIO;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import java.util.Iterator;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * A 30-bit (10 per channel) RGB image.
  */
 public class Image {
     
+    /**
+     * Storage layouts for image data.
+     */
+    public static enum Layout {
+        /**
+         * One packed 30-bit int per pixel. This is the default layout.
+         */
+        PACKED,
+        
+        /**
+         * One primitive array per channel. Sampling does not have to
+         * unpack the pixel value for each channel.
+         */
+        PLANAR,
+        
+        /**
+         * One packed 30-bit int per pixel, surrounded by a border of wrapped
+         * columns and replicated rows. Interior samples need no wrapping or clamping.
+         */
+        PADDED,
+        
+        /**
+         * One packed 30-bit int per pixel, stored outside the Java heap in a 
+         * memory-mapped temporary file. Can hold images with more than 
+         * <code>2<sup>31</sup></code> pixels.
+         */
+        MAPPED,
+        
+        /**
+         * One packed 30-bit int per pixel, stored in square blocks. Keeps
+         * sampling cache-friendly regardless of the direction of traversal.
+         */
+        TILED,
+        
+        /**
+         * One array of 16-bit half-precision floats per channel. Channel values 
+         * are not limited to [0, 1], so high dynamic range images can be
+         * transformed without tone mapping them first.
+         */
+        HALF_FLOAT
+    }
+    
+    /**
+     * Maximum number of pixels to decode at a time when reading an image
+     * in strips.
+     */
+    private final static int STRIP_PIXELS = 16 * 1024 * 1024;
+    
     /**
      * Number of bits allocated to each channel.
      */
-    private final static int COMPONENT_SIZE = 10;
+    protected final static int COMPONENT_SIZE = 10;
     
     /**
      * Bitmask to extract the rightmost component from a 32-bit int.
      */
-    private final static int COMPONENT_MASK = ((1 << COMPONENT_SIZE) - 1);
+    protected final static int COMPONENT_MASK = ((1 << COMPONENT_SIZE) - 1);
     
     /**
      * Bitshift for the blue channel.
      */
-    private final static int BLUE = 0;
+    protected final static int BLUE = 0;
     
     /**
      * Bitshift for the green channel.
      */
-    private final static int GREEN = COMPONENT_SIZE;
+    protected final static int GREEN = COMPONENT_SIZE;
     
     /**
      * Bitshift for the red channel.
      */
-    private final static int RED = COMPONENT_SIZE * 2;
+    protected final static int RED = COMPONENT_SIZE * 2;
+    
+    /**
+     * The channel value of white, in the 8 bits used of each channel.
+     */
+    protected final static float WHITE = 255.0f;
     
     /**
      * Width of image, in pixels.
      */
-    private int width;
+    protected final int width;
     
     /**
      * Height of image, in pixels.
      */
-    private int height;
+    protected final int height;
     
     /**
      * Image data.
      */
     private int[] data;
     
+    /**
+     * Index of the top-left pixel in {@link #data}.
+     */
+    private final int offset;
+    
+    /**
+     * Number of ints between the start of two consecutive lines in {@link #data}.
+     */
+    private final int stride;
+    
     /**
      * Creates an empty (all-black) image with the given width and height.
      */
     public Image (int width, int height) {
-        this.width = width;
-        this.height = height;
-        this.data = new int[width * height];
+        this (width, height, new int[width * height]);
     }
     
     /**
-     * Creates an image with the given data.
+     * Creates an image with the given data. Subclasses that provide their
+     * own storage pass {@code null} as data and must override all methods
+     * that access pixels.
      */
     public Image (int width, int height, int[] data) {
+        this (width, height, data, 0, width);
+    }
+    
+    /**
+     * Creates an image that uses a rectangular part of the given data.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param data the image data
+     * @param offset the index of the top-left pixel in the data
+     * @param stride the number of ints between the start of two consecutive lines in the data
+     */
+    protected Image (int width, int height, int[] data, int offset, int stride) {
         this.width = width;
         this.height = height;
         this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+    }
+    
+    /**
+     * Creates an empty (all-black) image with the given width, height and
+     * storage layout.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param layout the storage layout to use
+     * @throws IOException if the storage could not be allocated
+     */
+    public static Image create (int width, int height, Layout layout) throws IOException {
+        switch (layout) {
+        case PLANAR:
+            return new PlanarImage (width, height);
+        case PADDED:
+            return new PaddedImage (width, height);
+        case MAPPED:
+            return new MappedImage (width, height);
+        case TILED:
+            return new TiledImage (width, height);
+        case HALF_FLOAT:
+            return new HalfFloatImage (width, height);
+        default:
+            return new Image (width, height);
+        }
+    }
+    
+    /**
+     * The storage layout of this image.
+     */
+    public Layout layout () {
+        return Layout.PACKED;
+    }
+    
+    /**
+     * Returns a view of a rectangular region of this image. The view shares
+     * the image data, so no pixels are copied, and changes made through the view
+     * are visible in the image and vice versa. Coordinates in the view are relative 
+     * to the top-left corner of the region, and wrap and clamp at the edges of the region.
+     * Images whose storage cannot be viewed in this way return a copy of the region.
+     *
+     * @param x the x-coordinate of the top-left corner of the region
+     * @param y the y-coordinate of the top-left corner of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     * @return the region
+     */
+    public Image region (int x, int y, int w, int h) throws IOException {
+        checkRegion (x, y, w, h);
+        if (data == null) {
+            return copy (x, y, w, h);
+        }
+        return new Image (w, h, data, offset + y * stride + x, stride);
+    }
+    
+    /**
+     * Checks that a region lies within the image.
+     *
+     * @throws IllegalArgumentException if the region is empty or extends outside the image
+     */
+    protected void checkRegion (int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException ("Region [" + x + "," + y + "] + [" + w + "," + h + 
+                "] is not inside the " + width + "x" + height + " image");
+        }
+    }
+    
+    /**
+     * Copies a rectangular region of this image into a new image with the same layout.
+     *
+     * @param x the x-coordinate of the top-left corner of the region
+     * @param y the y-coordinate of the top-left corner of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     * @return the copy
+     */
+    protected Image copy (int x, int y, int w, int h) throws IOException {
+        Image result = create (w, h, layout ());
+        copy (x, y, w, h, result);
+        return result;
+    }
+    
+    /**
+     * Copies a rectangular region of this image into the top-left corner of another
+     * image. Unlike {@link #region(int,int,int,int)}, this never allocates storage, so
+     * one target can be reused for many regions.
+     *
+     * @param x the x-coordinate of the top-left corner of the region
+     * @param y the y-coordinate of the top-left corner of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     * @param target the image to copy the region into. Must be at least <code>w</code> by <code>h</code> pixels.
+     * @throws IllegalArgumentException if the region is not inside this image or the target
+     */
+    public void copy (int x, int y, int w, int h, Image target) {
+        checkRegion (x, y, w, h);
+        target.checkRegion (0, 0, w, h);
+        if (isHighDynamicRange ()) {
+            float[] c = new float[3];
+            for (int ry = 0; ry < h; ++ry) {
+                for (int rx = 0; rx < w; ++rx) {
+                    componentValue (x + rx, y + ry, c);
+                    target.componentValue (rx, ry, c[0], c[1], c[2]);
+                }
+            }
+        } else {
+            for (int ry = 0; ry < h; ++ry) {
+                for (int rx = 0; rx < w; ++rx) {
+                    target.value (rx, ry, value (x + rx, y + ry));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Computes the index of a pixel in row-major storage. The x-coordinate
+     * wraps around, and the y-coordinate is clamped to the image.
+     *
+     * @param x the x-coordinate of the pixel
+     * @param y the y-coordinate of the pixel
+     * @return the index of the pixel
+     */
+    protected final int index (int x, int y) {
+        x %= width;
+        if (x < 0) {
+            x += width;
+        }
+        if (y >= height) {
+            y = height - 1;
+        }
+        if (y < 0) {
+            y = 0;
+        }
+        return offset + y * stride + x;
     }
     
     /**
@@ -114,7 +346,7 @@ public class Image {
      * @param b the blue value
      */
     public void componentValue (int x, int y, int r, int g, int b) {
-        data[y * width + x] = (r << RED) | (g << GREEN) | (b << BLUE);
+        data[offset + y * stride + x] = (r << RED) | (g << GREEN) | (b << BLUE);
     }
     
     /**
@@ -125,17 +357,7 @@ public class Image {
      * @return the packed, 30-bit-total, 10-bit-per-color, value
      */
     public int value (int x, int y) {
-        x %= width;
-        if (x < 0) {
-            x += width;
-        }
-        if (y >= height) {
-            y = height - 1;
-        }
-        if (y < 0) {
-            y = 0;
-        }
-        return data[y * width + x];
+        return data[index (x, y)];
     }
     
     /**
@@ -185,6 +407,30 @@ public class Image {
         return (int) out;
     }
     
+    /**
+     * Width, in pixels, of the border around the image that can be sampled by 
+     * {@link #sampleInterior}. The default is zero.
+     */
+    public int border () {
+        return 0;
+    }
+    
+    /**
+     * Computes a linearly interpolated value for all channels at a point that
+     * is known to be in the interior of the image. The point must satisfy 
+     * <code>0 &lt;= x &lt; width () + border () - 1</code> and
+     * <code>0 &lt;= y &lt; height () + border () - 1</code>. 
+     * Subclasses can override this to skip the wrapping and clamping done by 
+     * {@link #sampleComponents}, which this method calls by default.
+     *
+     * @param x the x-coordinate to sample
+     * @param y the y-coordinate to sample
+     * @param result the result of the interpolated sampling. result[0] = red, result[1] = green, result[2] = blue
+     */
+    public void sampleInterior (double x, double y, int[] result) {
+        sampleComponents (x, y, result);
+    }
+    
     /**
      * Computes a linearly interpolated value for all channels at a given point
      *
@@ -193,9 +439,123 @@ public class Image {
      * @param result the result of the interpolated sampling. result[0] = red, result[1] = green, result[2] = blue
      */
     public void sampleComponents (double x, double y, int[] result) {
-        result[0] = sample (x, y, RED);
-        result[1] = sample (x, y, GREEN);
-        result[2] = sample (x, y, BLUE);
+        int x0 = (int) x;
+        int y0 = (int) y;
+        double xf = x - x0;
+        double yf = y - y0;
+        
+        int v00 = value (x0, y0);
+        int v10 = value (x0 + 1, y0);
+        int v01 = value (x0, y0 + 1);
+        int v11 = value (x0 + 1, y0 + 1);
+        
+        result[0] = lerp2 (v00, v10, v01, v11, xf, yf, RED);
+        result[1] = lerp2 (v00, v10, v01, v11, xf, yf, GREEN);
+        result[2] = lerp2 (v00, v10, v01, v11, xf, yf, BLUE);
+    }
+    
+    /**
+     * Bilinearly interpolates one channel of four packed pixel values.
+     *
+     * @param v00 the value at (0, 0)
+     * @param v10 the value at (1, 0)
+     * @param v01 the value at (0, 1)
+     * @param v11 the value at (1, 1)
+     * @param xf the x-coordinate in the interval [0, 1]
+     * @param yf the y-coordinate in the interval [0, 1]
+     * @param shift the bitshift of the component
+     * @return the interpolated component value
+     */
+    protected int lerp2 (int v00, int v10, int v01, int v11, double xf, double yf, int shift) {
+        return (int) lerp (
+            lerp ((v00 >> shift) & COMPONENT_MASK, (v10 >> shift) & COMPONENT_MASK, xf),
+            lerp ((v01 >> shift) & COMPONENT_MASK, (v11 >> shift) & COMPONENT_MASK, xf),
+            yf);
+    }
+    
+    /**
+     * Returns true if channel values can exceed white. Such images should be
+     * sampled and written using the floating-point methods
+     * {@link #sampleComponents(double,double,float[])} and 
+     * {@link #componentValue(int,int,float,float,float)}. The default is false.
+     */
+    public boolean isHighDynamicRange () {
+        return false;
+    }
+    
+    /**
+     * Gets the red, green and blue values for a given pixel as floating-point 
+     * values, where 1.0 is white.
+     *
+     * @param x the x-coordinate of the pixel
+     * @param y the y-coordinate of the pixel
+     * @param result the array to put the result in. result[0] = red, result[1] = green, result[2] = blue
+     */
+    public void componentValue (int x, int y, float[] result) {
+        int v = value (x, y);
+        result[0] = ((v >> RED) & COMPONENT_MASK) / WHITE;
+        result[1] = ((v >> GREEN) & COMPONENT_MASK) / WHITE;
+        result[2] = ((v >> BLUE) & COMPONENT_MASK) / WHITE;
+    }
+    
+    /**
+     * Sets the red, green and blue values for a given pixel from floating-point
+     * values, where 1.0 is white. The default implementation rounds and clamps 
+     * the values to the range of an 8-bit channel.
+     *
+     * @param x the x-coordinate of the pixel
+     * @param y the y-coordinate of the pixel
+     * @param r the red value
+     * @param g the green value
+     * @param b the blue value
+     */
+    public void componentValue (int x, int y, float r, float g, float b) {
+        componentValue (x, y, toComponent (r), toComponent (g), toComponent (b));
+    }
+    
+    /**
+     * Computes a linearly interpolated floating-point value for all channels 
+     * at a given point, where 1.0 is white.
+     *
+     * @param x the x-coordinate to sample
+     * @param y the y-coordinate to sample
+     * @param result the result of the interpolated sampling. result[0] = red, result[1] = green, result[2] = blue
+     */
+    public void sampleComponents (double x, double y, float[] result) {
+        int x0 = (int) x;
+        int y0 = (int) y;
+        double xf = x - x0;
+        double yf = y - y0;
+        
+        int v00 = value (x0, y0);
+        int v10 = value (x0 + 1, y0);
+        int v01 = value (x0, y0 + 1);
+        int v11 = value (x0 + 1, y0 + 1);
+        
+        result[0] = (float) lerp (
+            lerp ((v00 >> RED) & COMPONENT_MASK, (v10 >> RED) & COMPONENT_MASK, xf),
+            lerp ((v01 >> RED) & COMPONENT_MASK, (v11 >> RED) & COMPONENT_MASK, xf),
+            yf) / WHITE;
+        result[1] = (float) lerp (
+            lerp ((v00 >> GREEN) & COMPONENT_MASK, (v10 >> GREEN) & COMPONENT_MASK, xf),
+            lerp ((v01 >> GREEN) & COMPONENT_MASK, (v11 >> GREEN) & COMPONENT_MASK, xf),
+            yf) / WHITE;
+        result[2] = (float) lerp (
+            lerp ((v00 >> BLUE) & COMPONENT_MASK, (v10 >> BLUE) & COMPONENT_MASK, xf),
+            lerp ((v01 >> BLUE) & COMPONENT_MASK, (v11 >> BLUE) & COMPONENT_MASK, xf),
+            yf) / WHITE;
+    }
+    
+    /**
+     * Converts a floating-point channel value, where 1.0 is white, to an 8-bit
+     * channel value, rounding and clamping it to the range [0, 255].
+     *
+     * @param v the floating-point channel value
+     * @return the 8-bit channel value
+     */
+    protected final static int toComponent (float v) {
+        int c = (int) (v * WHITE + 0.5f);
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
     }
     
     /**
@@ -206,10 +566,9 @@ public class Image {
      * @return the 30-bit interpolated sample at the given point
      */
     public int sample (double x, double y) {
-        int r = sample (x, y, RED);
-        int g = sample (x, y, GREEN);
-        int b = sample (x, y, BLUE);
-        return (r << RED) | (g << GREEN) | (b << BLUE);
+        int[] result = new int[3];
+        sampleComponents (x, y, result);
+        return (result[0] << RED) | (result[1] << GREEN) | (result[2] << BLUE);
     }
     
     /**
@@ -220,7 +579,7 @@ public class Image {
      * @param v the 30-bit packed value to set the pixel to
      */
     public void value (int x, int y, int v) {
-        data[y * width + x] = v;
+        data[offset + y * stride + x] = v;
     }
     
     /**
@@ -241,7 +600,7 @@ public class Image {
      * Writes the image to a PNG file.
      */
     public void write (File file) throws Exception {
-        BufferedImage output = toBuffered ();
+        BufferedImage output = asBuffered ();
         
         OutputStream os = new BufferedOutputStream (new FileOutputStream (file), 2048*1024);
         try {
@@ -258,14 +617,105 @@ public class Image {
      * @param y1 one-past the last line to apply the scaling to
      */
     public void multiply (int y0, int y1, int num, int denom) {
-        int i = y0 * width;
         for (int y = y0; y < y1; ++y) {
+            int i = offset + y * stride;
+            for (int x = 0; x < width; ++x) {
+                int v = data[i];
+                int r = ((v >> RED) & COMPONENT_MASK) * num / denom;
+                int g = ((v >> GREEN) & COMPONENT_MASK) * num / denom;
+                int b = ((v >> BLUE) & COMPONENT_MASK) * num / denom;
+                data[i] = (r << RED) | (g << GREEN) | (b << BLUE);
+                ++i;
+            }
+        }
+    }
+    
+    /**
+     * Applies a pixel operation to a range of lines. Maps each channel through the
+     * lookup tables of the operation.
+     *
+     * @param y0 the first line to apply the operation to
+     * @param y1 one-past the last line to apply the operation to
+     * @param operation the operation to apply
+     */
+    public void apply (int y0, int y1, PixelOperation operation) {
+        apply (y0, y1, operation.red, operation.green, operation.blue);
+    }
+    
+    /**
+     * Maps each channel of a range of lines through a lookup table.
+     *
+     * @param y0 the first line to apply the tables to
+     * @param y1 one-past the last line to apply the tables to
+     * @param redTable the new value for each red value. Must have <code>2<sup>10</sup></code> entries.
+     * @param greenTable the new value for each green value. Must have <code>2<sup>10</sup></code> entries.
+     * @param blueTable the new value for each blue value. Must have <code>2<sup>10</sup></code> entries.
+     */
+    public void apply (int y0, int y1, int[] redTable, int[] greenTable, int[] blueTable) {
+        if (data == null) {
+            int[] c = new int[3];
+            for (int y = y0; y < y1; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    componentValue (x, y, c);
+                    componentValue (x, y, redTable[c[0]], greenTable[c[1]], blueTable[c[2]]);
+                }
+            }
+            return;
+        }
+        for (int y = y0; y < y1; ++y) {
+            int i = offset + y * stride;
+            for (int x = 0; x < width; ++x) {
+                int v = data[i];
+                data[i] = 
+                    (redTable[(v >> RED) & COMPONENT_MASK] << RED) | 
+                    (greenTable[(v >> GREEN) & COMPONENT_MASK] << GREEN) | 
+                    (blueTable[(v >> BLUE) & COMPONENT_MASK] << BLUE);
+                ++i;
+            }
+        }
+    }
+    
+    /**
+     * Blends another image into a range of lines of this image. Each channel
+     * becomes {@code (1 - alpha) * this + alpha * other}. The images must have
+     * the same size.
+     *
+     * @param y0 the first line to blend
+     * @param y1 one-past the last line to blend
+     * @param other the image to blend into this one
+     * @param alpha the weight of the other image, between 0 and 1
+     */
+    public void blend (int y0, int y1, Image other, double alpha) {
+        int a = (int) Math.round (alpha * 256);
+        int a1 = 256 - a;
+        if (data == null || other.data == null) {
+            int[] c = new int[3];
+            int[] o = new int[3];
+            for (int y = y0; y < y1; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    componentValue (x, y, c);
+                    other.componentValue (x, y, o);
+                    componentValue (x, y, 
+                        (c[0] * a1 + o[0] * a) >> 8, 
+                        (c[1] * a1 + o[1] * a) >> 8, 
+                        (c[2] * a1 + o[2] * a) >> 8);
+                }
+            }
+            return;
+        }
+        int[] otherData = other.data;
+        for (int y = y0; y < y1; ++y) {
+            int i = offset + y * stride;
+            int j = other.offset + y * other.stride;
             for (int x = 0; x < width; ++x) {
-                int r = sample (x, y, RED) * num / denom;
-                int g = sample (x, y, GREEN) * num / denom;
-                int b = sample (x, y, BLUE) * num / denom;
+                int v = data[i];
+                int w = otherData[j];
+                int r = (((v >> RED) & COMPONENT_MASK) * a1 + ((w >> RED) & COMPONENT_MASK) * a) >> 8;
+                int g = (((v >> GREEN) & COMPONENT_MASK) * a1 + ((w >> GREEN) & COMPONENT_MASK) * a) >> 8;
+                int b = (((v >> BLUE) & COMPONENT_MASK) * a1 + ((w >> BLUE) & COMPONENT_MASK) * a) >> 8;
                 data[i] = (r << RED) | (g << GREEN) | (b << BLUE);
                 ++i;
+                ++j;
             }
         }
     }
@@ -276,7 +726,7 @@ public class Image {
      * @param in the 30-bit pixel color value to compress to 24 bits
      * @return the resulting 24 bit value
      */
-    private final static int pack (int in) {
+    protected final static int pack (int in) {
         return (int) ((
             (((in >> RED  ) & 0xff) << 16) |
             (((in >> GREEN) & 0xff) <<  8) |
@@ -290,7 +740,7 @@ public class Image {
      * @param in the 24-bit pixel color value to expand to 30 bits
      * @return the resulting 30 bit value
      */
-    private final static int unpack (int in) {
+    protected final static int unpack (int in) {
         return (int) (
             (((in >> 16) & 0xff) << RED  ) |
             (((in >>  8) & 0xff) << GREEN) |
@@ -298,6 +748,34 @@ public class Image {
             );
     }
     
+    /**
+     * Reads a line of pixels as 24-bit RGB values.
+     *
+     * @param y the line to read
+     * @param line the array to put the 24-bit values in. Must be at least {@link #width()} long.
+     */
+    public void readLine (int y, int[] line) {
+        int rp = offset + y * stride;
+        for (int x = 0; x < width; ++x) {
+            line[x] = pack (data[rp]);
+            ++rp;
+        }
+    }
+    
+    /**
+     * Writes a line of pixels from 24-bit RGB values.
+     *
+     * @param y the line to write
+     * @param line the 24-bit values. Must be at least {@link #width()} long.
+     */
+    public void writeLine (int y, int[] line) {
+        int wp = offset + y * stride;
+        for (int x = 0; x < width; ++x) {
+            data[wp] = unpack (line[x]);
+            ++wp;
+        }
+    }
+    
     /**
      * Converts this image to a 24-bit per pixel {@link BufferedImage} with type 
      * {@link BufferedImage#TYPE_INT_RGB}.
@@ -306,28 +784,377 @@ public class Image {
         BufferedImage output = new BufferedImage (width, height, BufferedImage.TYPE_INT_RGB);
         final int[] line = new int[width];
         for (int y = 0; y < height; ++y) {
-            int rp = y * width;
-            for (int x = 0; x < width; ++x) {
-                line[x] = pack (data[rp]);
-                ++rp;
-            }
+            readLine (y, line);
             output.setRGB (0, y, width, 1, line, 0, width);
         }
         return output;
     }
     
+    /**
+     * Returns a {@link BufferedImage} view of this image. The view shares the
+     * image data, so no pixels are copied, and changes made through the view
+     * are visible in the image and vice versa. The view uses the lower 8 bits
+     * of each 10-bit channel, just like {@link #toBuffered()}.
+     * Images whose storage cannot be viewed as a raster return a copy made by 
+     * {@link #toBuffered()}.
+     *
+     * @throws UnsupportedOperationException if the image does not hold all of its
+     * lines, like a {@link StreamingImage}, so that neither a view nor a copy can be made
+     */
+    public BufferedImage asBuffered () throws Exception {
+        return view (data, offset, stride);
+    }
+    
+    /**
+     * Creates a {@link BufferedImage} view of packed 30-bit pixel data.
+     *
+     * @param data the pixel data
+     * @param offset the index of the top-left pixel of the image
+     * @param stride the number of ints between the start of two consecutive lines
+     */
+    protected BufferedImage view (int[] data, int offset, int stride) {
+        DirectColorModel colorModel = new DirectColorModel (COMPONENT_SIZE * 3, 
+            0xff << RED, 0xff << GREEN, 0xff << BLUE);
+        SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel (DataBuffer.TYPE_INT, 
+            width, height, stride, colorModel.getMasks ());
+        WritableRaster raster = Raster.createWritableRaster (sampleModel, 
+            new DataBufferInt (data, data.length - offset, offset), null);
+        return new BufferedImage (colorModel, raster, false, null);
+    }
+    
     /**
      * Reads an image from a file using java ImageIO.
      */
     public static Image read (File file) throws Exception {
-        BufferedImage input = null;
-        InputStream is = new BufferedInputStream (new FileInputStream (file), 2048*1024);
+        return read (file, Layout.PACKED);
+    }
+    
+    /**
+     * Reads an image from a file using java ImageIO, storing it in
+     * the given layout.
+     */
+    public static Image read (File file, Layout layout) throws Exception {
+        ImageInputStream iis = ImageIO.createImageInputStream (file);
+        if (iis == null) {
+            throw new IOException ("Unable to open " + file.getPath ());
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders (iis);
+            if (!readers.hasNext ()) {
+                throw new IOException ("No image reader found for " + file.getPath ());
+            }
+            ImageReader reader = readers.next ();
+            try {
+                reader.setInput (iis, false, true);
+                if (layout == Layout.MAPPED) {
+                    return readLarge (reader, layout);
+                }
+                
+                ImageReadParam param = reader.getDefaultReadParam ();
+                if (layout == Layout.HALF_FLOAT) {
+                    return HalfFloatImage.fromBuffered (reader.read (0, param));
+                }
+                int numBands = reader.getImageTypes (0).next ().getSampleModel ().getNumBands ();
+                if (layout == Layout.PACKED && numBands == 3) {
+                    return readPacked (reader, param);
+                }
+                return fromBuffered (reader.read (0, param), layout);
+            } finally {
+                reader.dispose ();
+            }
+        } finally {
+            iis.close ();
+        }
+    }
+    
+    /**
+     * Decodes a three-band image directly into an int raster, and unpacks the 
+     * raster in place. The raster data becomes the image data, so only one copy 
+     * of the image is ever held in memory.
+     */
+    private static Image readPacked (ImageReader reader, ImageReadParam param) throws Exception {
+        int width = reader.getWidth (0);
+        int height = reader.getHeight (0);
+        
+        BufferedImage destination = new BufferedImage (width, height, BufferedImage.TYPE_INT_RGB);
+        param.setDestination (destination);
+        reader.read (0, param);
+        
+        int[] data = ((DataBufferInt) destination.getRaster ().getDataBuffer ()).getData ();
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = unpack (data[i]);
+        }
+        return new Image (width, height, data);
+    }
+    
+    /**
+     * Reads an image that is too large for the Java heap into a layout that can hold it,
+     * such as {@link Layout#MAPPED}. Images that the reader decodes line by line are
+     * decoded once, with {@link #readLines(ImageReader,LineHandler)}, and each line is
+     * written to the result as soon as it has been decoded. Progressive and interlaced
+     * images are decoded in strips.
+     */
+    private static Image readLarge (ImageReader reader, Layout layout) throws Exception {
+        if (progressiveScans (reader) > 1) {
+            return readStrips (reader, layout);
+        }
+        final Image result = create (reader.getWidth (0), reader.getHeight (0), layout);
+        readLines (reader, new LineHandler () {
+                public void line (int y, int[] line) {
+                    result.writeLine (y, line);
+                }
+            });
+        return result;
+    }
+    
+    /**
+     * Reads an image in strips of lines, so that the whole image 
+     * never has to be decoded into a single {@link BufferedImage}. Each strip
+     * is a separate read, and most readers decode from the top of the image for each
+     * one, so this is only used for images that can't be read with 
+     * {@link #readLines(ImageReader,LineHandler)}.
+     */
+    private static Image readStrips (ImageReader reader, Layout layout) throws Exception {
+        int width = reader.getWidth (0);
+        int height = reader.getHeight (0);
+        
+        Image result = create (width, height, layout);
+        int stripHeight = Math.max (1, STRIP_PIXELS / width);
+        final int[] line = new int[width];
+        ImageReadParam param = reader.getDefaultReadParam ();
+        for (int y0 = 0; y0 < height; y0 += stripHeight) {
+            int h = Math.min (stripHeight, height - y0);
+            param.setSourceRegion (new Rectangle (0, y0, width, h));
+            BufferedImage strip = reader.read (0, param);
+            for (int y = 0; y < h; ++y) {
+                readRGB (strip, y, line);
+                result.writeLine (y0 + y, line);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Receives the lines of an image decoded by {@link #readLines(ImageReader,LineHandler)}.
+     */
+    static interface LineHandler {
+        
+        /**
+         * Called for each line of the image, in order from the top, on the thread that reads the image.
+         *
+         * @param y the line
+         * @param line the 24-bit RGB values of the line. Only valid until the method returns.
+         */
+        public void line (int y, int[] line);
+    }
+    
+    /**
+     * Decodes an image with a single read, from top to bottom, handing each line to a handler
+     * as soon as the reader reports it. The reader decodes into an image of the full height whose
+     * lines all share the storage of a single line, so no more than one line is held in memory, 
+     * however high the image is.
+     * <p>
+     * Only images that the reader decodes line by line can be read this way. Progressive and interlaced 
+     * images, for which {@link #progressiveScans(ImageReader)} is greater than one, are decoded
+     * in several passes and are rejected when the first line arrives out of order.
+     *
+     * @param reader the reader, with its input set
+     * @param handler the handler to hand the lines to
+     * @throws IllegalStateException if the reader reports the lines out of order
+     */
+    static void readLines (ImageReader reader, LineHandler handler) throws IOException {
+        int width = reader.getWidth (0);
+        int height = reader.getHeight (0);
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes (0);
+        if (!types.hasNext ()) {
+            throw new IOException ("The reader has no image type for the image");
+        }
+        ImageTypeSpecifier type = types.next ();
+        SampleModel lineModel = type.getSampleModel (width, 1);
+        DataBuffer storage = lineModel.createDataBuffer ();
+        
+        // Each line is read back through a view of the shared line
+        BufferedImage destination = image (type.getColorModel (), sharedLines (lineModel, height), storage);
+        LineListener listener = new LineListener (image (type.getColorModel (), lineModel, storage), handler);
+        
+        ImageReadParam param = reader.getDefaultReadParam ();
+        param.setDestination (destination);
+        reader.addIIOReadUpdateListener (listener);
         try {
-            input = ImageIO.read (is);
+            reader.read (0, param);
         } finally {
-            is.close ();
+            reader.removeIIOReadUpdateListener (listener);
+        }
+        if (listener.next != height) {
+            throw new IOException ("The reader reported " + listener.next + " of " + height + " lines");
+        }
+    }
+    
+    /**
+     * Hands the lines reported by a reader to a {@link LineHandler}.
+     */
+    private static class LineListener implements IIOReadUpdateListener {
+        
+        /**
+         * A view of the line that the reader decodes into.
+         */
+        private final BufferedImage lineView;
+        
+        /**
+         * The handler to hand the lines to.
+         */
+        private final LineHandler handler;
+        
+        /**
+         * The 24-bit RGB values of the current line.
+         */
+        private final int[] line;
+        
+        /**
+         * The line that the reader must report next.
+         */
+        private int next = 0;
+        
+        /**
+         * Creates a listener.
+         */
+        public LineListener (BufferedImage lineView, LineHandler handler) {
+            this.lineView = lineView;
+            this.handler = handler;
+            this.line = new int[lineView.getWidth ()];
+        }
+        
+        public void imageUpdate (ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height, int periodX, int periodY, int[] bands) {
+            if (minY != next || height != 1 || periodY != 1) {
+                throw new IllegalStateException ("The reader decoded lines " + minY + " to " + (minY + (height - 1) * periodY) +
+                    " when line " + next + " was expected. Only images that are decoded line by line, from top to bottom, can be read line by line");
+            }
+            readRGB (lineView, 0, line);
+            handler.line (minY, line);
+            ++next;
+        }
+        
+        public void passStarted (ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+        
+        public void passComplete (ImageReader source, BufferedImage theImage) {
+        }
+        
+        public void thumbnailPassStarted (ImageReader source, BufferedImage theThumbnail, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+        
+        public void thumbnailUpdate (ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width, int height, int periodX, int periodY, int[] bands) {
+        }
+        
+        public void thumbnailPassComplete (ImageReader source, BufferedImage theThumbnail) {
+        }
+    }
+    
+    /**
+     * Creates a sample model for an image of the given height whose lines all share
+     * the storage of a single line. A scanline stride of 0 puts every line at the same
+     * place in the data buffer.
+     *
+     * @param line the sample model of one line
+     * @param height the height of the image
+     */
+    private static SampleModel sharedLines (SampleModel line, int height) throws IOException {
+        int width = line.getWidth ();
+        if (line instanceof BandedSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) line;
+            return new BandedSampleModel (csm.getDataType (), width, height, 0, csm.getBankIndices (), csm.getBandOffsets ());
+        } else if (line instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) line;
+            return new ComponentSampleModel (csm.getDataType (), width, height, csm.getPixelStride (), 0, csm.getBankIndices (), csm.getBandOffsets ());
+        } else if (line instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) line;
+            return new SinglePixelPackedSampleModel (sppsm.getDataType (), width, height, 0, sppsm.getBitMasks ());
+        } else if (line instanceof MultiPixelPackedSampleModel) {
+            MultiPixelPackedSampleModel mppsm = (MultiPixelPackedSampleModel) line;
+            return new MultiPixelPackedSampleModel (mppsm.getDataType (), width, height, mppsm.getPixelBitStride (), 0, mppsm.getDataBitOffset ());
+        } else {
+            throw new IOException ("Images with a " + line.getClass ().getName () + " can't be read line by line");
+        }
+    }
+    
+    /**
+     * Creates an image on a data buffer.
+     */
+    private static BufferedImage image (ColorModel colorModel, SampleModel sampleModel, DataBuffer storage) {
+        WritableRaster raster = Raster.createWritableRaster (sampleModel, storage, null);
+        return new BufferedImage (colorModel, raster, colorModel.isAlphaPremultiplied (), null);
+    }
+    
+    /**
+     * Gets the number of progressive scans of an image, from the standard metadata.
+     * A reader delivers the lines of an image with more than one scan several times,
+     * starting with coarse approximations.
+     *
+     * @param reader the reader, with its input set
+     * @return the number of scans, or 1 if the reader does not report it
+     */
+    static int progressiveScans (ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata (0);
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported ()) {
+            return 1;
+        }
+        Node tree = metadata.getAsTree (IIOMetadataFormatImpl.standardMetadataFormatName);
+        for (Node node = tree.getFirstChild (); node != null; node = node.getNextSibling ()) {
+            if (!"Compression".equals (node.getNodeName ())) {
+                continue;
+            }
+            for (Node child = node.getFirstChild (); child != null; child = child.getNextSibling ()) {
+                if ("NumProgressiveScans".equals (child.getNodeName ())) {
+                    return Integer.parseInt (((Element) child).getAttribute ("value"));
+                }
+            }
+        }
+        return 1;
+    }
+    
+    /**
+     * Reads a line of 24-bit RGB values from a {@link BufferedImage}. Rasters with
+     * packed int pixels or interleaved byte pixels, such as those of 
+     * {@link BufferedImage#TYPE_INT_RGB} and {@link BufferedImage#TYPE_3BYTE_BGR} images,
+     * are read directly from the data buffer. Other images are read via 
+     * {@link BufferedImage#getRGB(int,int,int,int,int[],int,int)}.
+     *
+     * @param input the image to read from
+     * @param y the line to read
+     * @param line the array to put the 24-bit values in
+     */
+    static void readRGB (BufferedImage input, int y, int[] line) {
+        int width = input.getWidth ();
+        Raster raster = input.getRaster ();
+        SampleModel sm = raster.getSampleModel ();
+        DataBuffer db = raster.getDataBuffer ();
+        int smx = -raster.getSampleModelTranslateX ();
+        int smy = y - raster.getSampleModelTranslateY ();
+        
+        int type = input.getType ();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) 
+            && sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt) {
+            int offset = db.getOffset () + ((SinglePixelPackedSampleModel) sm).getOffset (smx, smy);
+            System.arraycopy (((DataBufferInt) db).getData (), offset, line, 0, width);
+        } else if (type == BufferedImage.TYPE_3BYTE_BGR 
+            && sm instanceof ComponentSampleModel && db instanceof DataBufferByte) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            byte[] data = ((DataBufferByte) db).getData ();
+            int[] bandOffsets = csm.getBandOffsets ();
+            int pixelStride = csm.getPixelStride ();
+            int rp = db.getOffset () + smy * csm.getScanlineStride () + smx * pixelStride;
+            int r = rp + bandOffsets[0];
+            int g = rp + bandOffsets[1];
+            int b = rp + bandOffsets[2];
+            for (int x = 0; x < width; ++x) {
+                line[x] = ((data[r] & 0xff) << 16) | ((data[g] & 0xff) << 8) | (data[b] & 0xff);
+                r += pixelStride;
+                g += pixelStride;
+                b += pixelStride;
+            }
+        } else {
+            input.getRGB (0, y, width, 1, line, 0, width);
         }
-        return fromBuffered (input);
     }
         
     /**
@@ -335,19 +1162,24 @@ public class Image {
      * of type {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB}.
      */
     public static Image fromBuffered (BufferedImage input) throws Exception {        
+        return fromBuffered (input, Layout.PACKED);
+    }
+    
+    /**
+     * Creates an image with the given storage layout from a {@link BufferedImage}, 
+     * which is assumed to be of type {@link BufferedImage#TYPE_INT_RGB} or 
+     * {@link BufferedImage#TYPE_INT_ARGB}.
+     */
+    public static Image fromBuffered (BufferedImage input, Layout layout) throws Exception {        
         int width = input.getWidth ();
         int height = input.getHeight ();
         
-        int[] data = new int[width * height];
+        Image result = create (width, height, layout);
         final int[] line = new int[width];
         for (int y = 0; y < height; ++y) {
-            input.getRGB (0, y, width, 1, line, 0, width);
-            int wp = y * width;
-            for (int x = 0; x < width; ++x) {
-                data[wp] = unpack (line[x]);
-                ++wp;
-            }
+            readRGB (input, y, line);
+            result.writeLine (y, line);
         }
-        return new Image (width, height, data);
+        return result;
     }
 }
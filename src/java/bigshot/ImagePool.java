@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A pool of images that can be reused instead of allocating new ones. Large
+ * images that are allocated and discarded over and over, such as cube faces
+ * and pyramid levels, cause long garbage collection pauses. Returning them to
+ * a pool lets the next face or level of the same size and layout reuse the memory.
+ * <p>
+ * The pool retains at most a given number of pixels. When releasing an image
+ * would exceed the limit, the images that were released the longest time ago
+ * are discarded first. An image that is larger than the limit by itself is
+ * never retained. The pool is thread-safe.
+ */
+public class ImagePool {
+    
+    /**
+     * Maximum number of pixels to retain.
+     */
+    private final long maxPixels;
+    
+    /**
+     * Retained images, least recently released first.
+     */
+    private final LinkedList<Image> images = new LinkedList<Image> ();
+    
+    /**
+     * Total number of pixels in the retained images.
+     */
+    private long pixels = 0;
+    
+    /**
+     * Creates a new pool.
+     *
+     * @param maxPixels the maximum number of pixels to retain. Zero
+     * creates a pool that never retains any images.
+     */
+    public ImagePool (long maxPixels) {
+        if (maxPixels < 0) {
+            throw new IllegalArgumentException ("maxPixels < 0 : " + maxPixels);
+        }
+        this.maxPixels = maxPixels;
+    }
+    
+    /**
+     * Gets an image with the given size and layout. If the pool retains such an image,
+     * it is removed from the pool and returned, otherwise a new image is created.
+     * The contents of a reused image are undefined, so callers must overwrite
+     * every pixel.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param layout the storage layout of the image
+     * @return an image with the given size and layout
+     * @throws IOException if a new image could not be allocated
+     */
+    public Image acquire (int width, int height, Image.Layout layout) throws IOException {
+        synchronized (this) {
+            Iterator<Image> iter = images.descendingIterator ();
+            while (iter.hasNext ()) {
+                Image image = iter.next ();
+                if (image.width () == width && image.height () == height && image.layout () == layout) {
+                    iter.remove ();
+                    pixels -= pixels (image);
+                    return image;
+                }
+            }
+        }
+        return Image.create (width, height, layout);
+    }
+    
+    /**
+     * Returns an image to the pool. The caller must not use the image after
+     * releasing it.
+     *
+     * @param image the image to return. May be null, in which case nothing happens.
+     */
+    public synchronized void release (Image image) {
+        if (image == null || pixels (image) > maxPixels) {
+            return;
+        }
+        images.addLast (image);
+        pixels += pixels (image);
+        while (pixels > maxPixels) {
+            pixels -= pixels (images.removeFirst ());
+        }
+    }
+    
+    /**
+     * Discards all retained images.
+     */
+    public synchronized void clear () {
+        images.clear ();
+        pixels = 0;
+    }
+    
+    /**
+     * Number of pixels in an image.
+     */
+    private static long pixels (Image image) {
+        return (long) image.width () * image.height ();
+    }
+}
@@ -205,6 +205,99 @@ public class ImagePyramidParameters extends TreeMap<String,String> {
         jitter
         The random sampling jitter to use when using the "face" transform.
         ;
+    
+    @STRINGENUM
+        JitterPattern
+        How the jitter of neighbouring samples is distributed. Default is RANDOM.
+        random
+        Independent jitter for each sample.
+        stratified
+        Jitter spread evenly along each row and column of samples.
+        blue_noise
+        Jitter that differs as much as possible between neighbouring samples.
+        ;
+    
+    @INTEGER
+        jitterSeed
+        The seed of the jitter pattern. Default: 0
+        ;
+    
+    @FLOAT
+        adaptiveOversampling
+        The largest distance, in map image pixels, between samples when oversampling adaptively with the "face" transform.
+        ;
+    
+    @FLOAT
+        exposure
+        Exposure correction, in stops, to apply to the map image when using the "face" or "*-facemap" transforms. Default: 0
+        ;
+    
+    @FLOAT
+        gamma
+        Gamma correction to apply to the map image when using the "face" or "*-facemap" transforms. Default: 1.0
+        ;
+    
+    @STRINGENUM
+        ImageLayout
+        The storage layout of the input image map when using the "face" or "*-facemap" transforms. Default is PACKED.
+        packed
+        One packed 30-bit value per pixel.
+        planar
+        One array per color channel. Faster sampling at the same memory use.
+        padded
+        One packed 30-bit value per pixel with a wrapped and replicated border. Faster sampling at slightly more memory use.
+        mapped
+        One packed 30-bit value per pixel in a memory-mapped temporary file outside the Java heap. For image maps too large for the heap.
+        tiled
+        One packed 30-bit value per pixel, stored in 64x64 pixel blocks. Faster sampling of the up and down faces.
+        half_float
+        One array of 16-bit floats per color channel. Keeps the full range of high dynamic range image maps, such as float TIFFs and 16-bit PNGs, through the transform.
+        ;
+
+    @STRINGENUM
+        Kernel
+        How the "face" and "*-facemap" transforms compute the direction of each sight ray. Default is TABLE.
+        table
+        Inverse trigonometric functions looked up in tables, one sample at a time.
+        polynomial
+        A polynomial approximation computed a row of samples at a time. Faster, and accurate to 1e-8 radians.
+        ;
+
+    @STRINGENUM
+        Filter
+        How the "face" and "*-facemap" transforms filter the map image where it is minified. Default is OVERSAMPLING.
+        oversampling
+        Average a grid of samples for each output pixel, as set by --oversampling, --jitter and --adaptive-oversampling.
+        trilinear
+        One trilinear sample of a prefiltered pyramid of the map image for each output pixel.
+        anisotropic
+        Several trilinear samples along the major axis of the footprint of each output pixel.
+        ;
+
+    @INTEGER
+        facesInFlight
+        For the "*-facemap" transforms, the number of cube faces to keep in memory, so that faces are written while the next face is rendered. Default: 2
+        ;
+
+    @STRING
+        faceSpillDirectory
+        For the "*-facemap" transforms, a directory to write the rendered faces to before making their pyramids. By default the pyramids are made from the faces in memory.
+        ;
+
+    @BOOLEAN
+        streamInput
+        For the "*-facemap" transforms, decode the input image once, from top to bottom, while rendering the faces, keeping only the lines being sampled in memory. Can not be combined with exposure or gamma. Default: false
+        ;
+
+    @BOOLEAN
+        directLevels
+        For the "*-facemap" transforms, render each level of each face pyramid directly from the input image at its own resolution, in parallel, instead of reducing the full face one level at a time. Default: false
+        ;
+
+    @STRING
+        remapDirectory
+        For the "face" and "*-facemap" transforms, a directory to store remap tables in. Transforms with the same geometry as an earlier run reuse its table instead of recomputing the image map coordinates of each sample.
+        ;
 
     @FLOAT
         fov
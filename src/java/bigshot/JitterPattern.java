@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Offsets to jitter the samples of an oversampling grid by. The offset of a sample
+ * is a function of its position in the grid and a seed only, so it can be computed
+ * by any number of threads without sharing a random number generator, and
+ * a jittered transform gives the same result every time, however it is split
+ * into tiles.
+ * <p>
+ * {@link Type#RANDOM} offsets are computed by hashing the sample position.
+ * {@link Type#STRATIFIED} and {@link Type#BLUE_NOISE} offsets are looked up in a
+ * table of {@link #SIZE} by {@link #SIZE} offsets, computed once per seed, that
+ * is repeated across the grid. The tables of the most recently used seeds are cached.
+ */
+public class JitterPattern {
+    
+    /**
+     * Ways to distribute the offsets of neighbouring samples.
+     */
+    public static enum Type {
+        /**
+         * Independent, uniformly distributed offsets. This is the default.
+         */
+        RANDOM,
+        
+        /**
+         * The x-offsets along each row of a table, and the y-offsets along each column,
+         * are spread evenly over [0, 1), so that neighbouring samples are never
+         * all offset the same way.
+         */
+        STRATIFIED,
+        
+        /**
+         * Each offset is chosen to be as different as possible from the offsets of its
+         * neighbours, which moves the noise from jittering to high frequencies that
+         * the averaging of the oversampling grid removes.
+         */
+        BLUE_NOISE
+    }
+    
+    /**
+     * Width and height of the tables of {@link Type#STRATIFIED} and {@link Type#BLUE_NOISE} patterns.
+     */
+    public final static int SIZE = 64;
+    
+    /**
+     * Bitmask to extract the position within a table from a sample coordinate.
+     */
+    private final static int MASK = SIZE - 1;
+    
+    /**
+     * Number of candidate offsets to pick the best one from for {@link Type#BLUE_NOISE}.
+     */
+    private final static int CANDIDATES = 16;
+    
+    /**
+     * Distance, in samples, of the neighbours that a {@link Type#BLUE_NOISE} offset
+     * is compared to.
+     */
+    private final static int RADIUS = 2;
+    
+    /**
+     * Maximum number of tabled patterns held by the cache. Each table takes
+     * {@code 16 * SIZE * SIZE} bytes.
+     */
+    private final static int CACHE_PATTERNS = 64;
+    
+    /**
+     * Tabled patterns that have been computed, by type and seed, in least-recently-used order.
+     */
+    private final static LinkedHashMap<String,JitterPattern> cache = new LinkedHashMap<String,JitterPattern> (16, 0.75f, true);
+    
+    /**
+     * The seed.
+     */
+    private final long seed;
+    
+    /**
+     * x-offset of each table entry, or null if the offsets are hashed.
+     */
+    private final double[] xs;
+    
+    /**
+     * y-offset of each table entry, or null if the offsets are hashed.
+     */
+    private final double[] ys;
+    
+    /**
+     * Creates a pattern.
+     *
+     * @param type the type of pattern
+     * @param seed the seed
+     */
+    private JitterPattern (Type type, long seed) {
+        this.seed = seed;
+        if (type == Type.RANDOM) {
+            this.xs = null;
+            this.ys = null;
+            return;
+        }
+        
+        this.xs = new double[SIZE * SIZE];
+        this.ys = new double[SIZE * SIZE];
+        if (type == Type.STRATIFIED) {
+            stratify ();
+        } else {
+            spread ();
+        }
+    }
+    
+    /**
+     * Gets the pattern of a type for a seed. {@link Type#RANDOM} patterns have no
+     * table and are created on each call. Other patterns are taken from the cache,
+     * evicting the least recently used patterns when it holds more than
+     * {@link #CACHE_PATTERNS} patterns.
+     *
+     * @param type the type of pattern
+     * @param seed the seed
+     */
+    public static synchronized JitterPattern get (Type type, long seed) {
+        if (type == Type.RANDOM) {
+            return new JitterPattern (type, seed);
+        }
+        String key = type + " " + seed;
+        JitterPattern pattern = cache.get (key);
+        if (pattern == null) {
+            pattern = new JitterPattern (type, seed);
+            cache.put (key, pattern);
+            Iterator<Map.Entry<String,JitterPattern>> iter = cache.entrySet ().iterator ();
+            while (cache.size () > CACHE_PATTERNS) {
+                iter.next ();
+                iter.remove ();
+            }
+        }
+        return pattern;
+    }
+    
+    /**
+     * Gets the x-offset of a sample.
+     *
+     * @param x the x-coordinate of the sample in the oversampling grid
+     * @param y the y-coordinate of the sample in the oversampling grid
+     * @return the offset, in [0, 1)
+     */
+    public double x (int x, int y) {
+        if (xs == null) {
+            return hash (x, y, 0);
+        }
+        return xs[(y & MASK) * SIZE + (x & MASK)];
+    }
+    
+    /**
+     * Gets the y-offset of a sample.
+     *
+     * @param x the x-coordinate of the sample in the oversampling grid
+     * @param y the y-coordinate of the sample in the oversampling grid
+     * @return the offset, in [0, 1)
+     */
+    public double y (int x, int y) {
+        if (ys == null) {
+            return hash (x, y, 1);
+        }
+        return ys[(y & MASK) * SIZE + (x & MASK)];
+    }
+    
+    /**
+     * Hashes a sample position and the seed to a uniformly distributed number,
+     * using the SplitMix64 finalizer.
+     *
+     * @param x the x-coordinate of the sample
+     * @param y the y-coordinate of the sample
+     * @param n the number of the value to compute for the sample
+     * @return a number in [0, 1)
+     */
+    private double hash (int x, int y, int n) {
+        long z = seed + x * 0x9E3779B97F4A7C15L + y * 0xC2B2AE3D27D4EB4FL + n * 0x165667B19E3779F9L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53;
+    }
+    
+    /**
+     * Shuffles the numbers 0 to {@code SIZE - 1}.
+     *
+     * @param n the number of the shuffle, to get a different order from the same seed
+     */
+    private int[] permutation (int n) {
+        int[] p = new int[SIZE];
+        for (int i = 0; i < SIZE; ++i) {
+            p[i] = i;
+        }
+        for (int i = SIZE - 1; i > 0; --i) {
+            int j = (int) (hash (i, n, 2) * (i + 1));
+            int t = p[i];
+            p[i] = p[j];
+            p[j] = t;
+        }
+        return p;
+    }
+    
+    /**
+     * Fills the table with offsets that are stratified along the rows and columns.
+     */
+    private void stratify () {
+        for (int i = 0; i < SIZE; ++i) {
+            int[] row = permutation (i);
+            int[] column = permutation (SIZE + i);
+            for (int j = 0; j < SIZE; ++j) {
+                xs[i * SIZE + j] = (row[j] + hash (j, i, 0)) / SIZE;
+                ys[j * SIZE + i] = (column[j] + hash (i, j, 1)) / SIZE;
+            }
+        }
+    }
+    
+    /**
+     * Fills the table with blue noise offsets, using Mitchell's best-candidate algorithm.
+     * The entries are visited in random order, and each gets the one of
+     * {@link #CANDIDATES} random offsets that is furthest from the offsets
+     * already given to its neighbours. The table wraps around, so that it
+     * can be repeated without seams.
+     */
+    private void spread () {
+        boolean[] done = new boolean[SIZE * SIZE];
+        int[] order = new int[SIZE * SIZE];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        for (int i = order.length - 1; i > 0; --i) {
+            int j = (int) (hash (i, 0, 3) * (i + 1));
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        
+        for (int k = 0; k < order.length; ++k) {
+            int i = order[k];
+            int x = i & MASK;
+            int y = i / SIZE;
+            double bestDistance = -1.0;
+            for (int c = 0; c < CANDIDATES; ++c) {
+                double cx = hash (i, c, 4);
+                double cy = hash (i, c, 5);
+                double nearest = Double.MAX_VALUE;
+                for (int dy = -RADIUS; dy <= RADIUS; ++dy) {
+                    for (int dx = -RADIUS; dx <= RADIUS; ++dx) {
+                        int j = ((y + dy) & MASK) * SIZE + ((x + dx) & MASK);
+                        if (done[j]) {
+                            double ex = cx - xs[j];
+                            double ey = cy - ys[j];
+                            nearest = Math.min (nearest, ex * ex + ey * ey);
+                        }
+                    }
+                }
+                if (nearest > bestDistance) {
+                    bestDistance = nearest;
+                    xs[i] = cx;
+                    ys[i] = cy;
+                }
+            }
+            done[i] = true;
+        }
+    }
+}
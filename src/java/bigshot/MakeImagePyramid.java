@@ -35,6 +35,9 @@ import java.util.List;
 import java.util.Locale;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Command-line tool to creates the tiled image pyramids that are used by Bigshot.
@@ -148,6 +151,19 @@ public class MakeImagePyramid {
     }
     
     
+    /**
+     * Creates transforms for rendering the levels of the face pyramids straight
+     * from the image map.
+     */
+    private static interface FaceTransforms {
+        
+        /**
+         * Creates a new, fully configured transform. Each level is rendered with its
+         * own transform, so that the levels can be rendered in parallel.
+         */
+        public AbstractSphericalCubicTransform<?> create () throws Exception;
+    }
+    
     private static interface Output {
         public void write (BufferedImage image, File output) throws Exception;
         public String getSuffix ();
@@ -202,27 +218,42 @@ public class MakeImagePyramid {
         }
     }
     
-    private static void tile (BufferedImage full, int tileWidth, int overlap, File outputBase, Output output) throws Exception {
-        BufferedImage tile = new BufferedImage (tileWidth, tileWidth, BufferedImage.TYPE_INT_RGB);
+    private static void tile (Image full, BufferedImage tile, int overlap, File outputBase, Output output) throws Exception {
+        int tileWidth = tile.getWidth ();
         int startOffset = 0;
         
+        // Regions of a mapped level are copies in new mapped files, so copy each
+        // tile into one heap buffer instead
+        Image buffer = full.layout () == Image.Layout.MAPPED ? new Image (tileWidth, tileWidth) : null;
+        
         int ty = 0;
-        for (int y = startOffset; y < full.getHeight () - overlap; y += tileWidth - overlap) {
+        for (int y = startOffset; y < full.height () - overlap; y += tileWidth - overlap) {
             int tx = 0;
-            for (int x = startOffset; x < full.getWidth () - overlap; x += tileWidth - overlap) {
-                int w = Math.min (x + tileWidth, full.getWidth ()) - x;
-                int h = Math.min (y + tileWidth, full.getHeight ()) - y;
+            for (int x = startOffset; x < full.width () - overlap; x += tileWidth - overlap) {
+                int w = Math.min (x + tileWidth, full.width ()) - x;
+                int h = Math.min (y + tileWidth, full.height ()) - y;
                 
                 System.out.println ("Generating tile " + tx + "," + ty + " = [" + x + "," + y + "] + [" + w + "," + h + "] -> [" + (x + w) + "," + (y + h) + "]...");
                 
-                BufferedImage section = full.getSubimage (x, y, w, h);
-                Graphics2D g = tile.createGraphics ();
-                g.setColor (Color.BLACK);
-                g.fillRect (0, 0, tileWidth, tileWidth);
-                g.drawImage (section, 0, 0, null);
-                g.dispose ();
+                BufferedImage section;
+                if (buffer != null) {
+                    full.copy (x, y, w, h, buffer);
+                    section = buffer.region (0, 0, w, h).asBuffered ();
+                } else {
+                    section = full.region (x, y, w, h).asBuffered ();
+                }
                 String filename = tx + "_" + ty + output.getSuffix ();
-                output.write (tile, new File (outputBase, filename));
+                if (w == tileWidth && h == tileWidth) {
+                    // Full tiles are encoded straight from the level
+                    output.write (section, new File (outputBase, filename));
+                } else {
+                    Graphics2D g = tile.createGraphics ();
+                    g.setColor (Color.BLACK);
+                    g.fillRect (0, 0, tileWidth, tileWidth);
+                    g.drawImage (section, 0, 0, null);
+                    g.dispose ();
+                    output.write (tile, new File (outputBase, filename));
+                }
                 
                 ++tx;
             }
@@ -319,40 +350,29 @@ public class MakeImagePyramid {
             parameters.transform () == ImagePyramidParameters.Transform.CYLINDER_FACEMAP) {
             boolean archive = parameters.format () == ImagePyramidParameters.Format.ARCHIVE;
             
-            File facesOut = File.createTempFile ("makeimagepyramid", "bigshot");
-            facesOut.delete ();
-            facesOut.mkdirs ();
-            try {
-                File[] faces = null;
-                AbstractCubicTransform xform = null;
-                if (parameters.transform () == ImagePyramidParameters.Transform.CYLINDER_FACEMAP) {
-                    xform = new CylindricalToCubic ();
-                } else {
-                    xform = new EquirectangularToCubic ();
-                }
-                int xformFaceSize = parameters.optFaceSize (2048) + parameters.optOverlap (0);
-                xform.input (input)
-                    .vfov (90)
-                    .size (xformFaceSize, xformFaceSize)
-                    .offset (parameters.optYawOffset (0), parameters.optPitchOffset (0), parameters.optRollOffset (0));
-                
-                if (parameters.containsKey (ImagePyramidParameters.TRANSFORM_PTO)) {
-                    xform.fromHuginPto (new File (parameters.transformPto ()));
-                }
-                if (parameters.containsKey (ImagePyramidParameters.INPUT_VFOV)) {
-                    xform.inputVfov (parameters.inputVfov ());
-                }
-                if (parameters.containsKey (ImagePyramidParameters.INPUT_HFOV)) {
-                    xform.inputHfov (parameters.inputHfov ());
-                }
-                if (parameters.containsKey (ImagePyramidParameters.INPUT_HORIZON)) {
-                    xform.inputHorizon (parameters.inputHorizon ());
+            int xformFaceSize = parameters.optFaceSize (2048) + parameters.optOverlap (0);
+            
+            StreamingImage stream = null;
+            Image in = null;
+            if (parameters.optStreamInput (false)) {
+                if (parameters.optExposure (0.0f) != 0.0f || parameters.optGamma (1.0f) != 1.0f) {
+                    throw new IllegalArgumentException ("--exposure and --gamma can not be used with --stream-input");
                 }
+                stream = StreamingImage.open (input);
+                in = stream;
+            } else {
+                in = readInput (input, parameters);
+            }
+            
+            try {
+                // Retains the rendered face for reuse, and then the levels of one face pyramid
+                // for reuse by the next face.
+                final ImagePool pool = new ImagePool ((long) xformFaceSize * xformFaceSize);
+                AbstractSphericalCubicTransform<?> xform = facemapTransform (in, parameters);
+                xform.pool (pool);
                 
                 System.out.println (String.format (Locale.US, "Input FOV: %.2f x %.2f degrees", xform.inputHfov (), xform.inputVfov ()));
                 
-                faces = xform.transformToFaces (facesOut);
-                
                 parameters.remove (ImagePyramidParameters.FORMAT);
                 parameters.remove (ImagePyramidParameters.FOLDER_LAYOUT);
                 
@@ -363,12 +383,55 @@ public class MakeImagePyramid {
                     pyramidBase.mkdirs ();
                 }
                 
-                for (File face : faces) {
-                    System.out.println ("Making pyramid for " + face.getName ());
-                    String noExt = face.getName ().substring (0, face.getName ().lastIndexOf ('.'));
-                    File out = new File (pyramidBase, noExt);
-                    makePyramid (face, out, parameters);
-                    face.delete ();
+                if (parameters.optDirectLevels (false)) {
+                    if (stream != null) {
+                        throw new IllegalArgumentException ("--direct-levels can not be used with --stream-input");
+                    }
+                    
+                    // Render every level of every face straight from the image map, sharing one mip-map
+                    final Image image = in;
+                    final MipMap mipMap = xform.mipMap ();
+                    final ImagePyramidParameters faceParameters = parameters;
+                    FaceTransforms transforms = new FaceTransforms () {
+                            public AbstractSphericalCubicTransform<?> create () throws Exception {
+                                AbstractSphericalCubicTransform<?> transform = facemapTransform (image, faceParameters);
+                                transform.mipMap (mipMap);
+                                return transform;
+                            }
+                        };
+                    for (String face : AbstractCubicTransform.FACE_NAMES) {
+                        System.out.println ("Making pyramid for " + face);
+                        makePyramid (face, xformFaceSize, transforms, new File (pyramidBase, face), parameters);
+                    }
+                } else if (parameters.containsKey (ImagePyramidParameters.FACE_SPILL_DIRECTORY)) {
+                    // Write the faces to disk, and make the pyramids from the files
+                    File spillDirectory = new File (parameters.faceSpillDirectory ());
+                    spillDirectory.mkdirs ();
+                    File facesOut = File.createTempFile ("makeimagepyramid", "bigshot", spillDirectory);
+                    facesOut.delete ();
+                    facesOut.mkdirs ();
+                    try {
+                        File[] faces = xform.transformToFaces (facesOut);
+                        for (File face : faces) {
+                            System.out.println ("Making pyramid for " + face.getName ());
+                            String noExt = face.getName ().substring (0, face.getName ().lastIndexOf ('.'));
+                            File out = new File (pyramidBase, noExt);
+                            makePyramid (face, out, parameters, pool);
+                            face.delete ();
+                        }
+                    } finally {
+                        deleteAll (facesOut);
+                    }
+                } else {
+                    // Make the pyramid of each face as soon as it has been rendered
+                    final File facePyramidBase = pyramidBase;
+                    final ImagePyramidParameters faceParameters = parameters;
+                    xform.transformToFaces (new AbstractCubicTransform.FaceHandler () {
+                            public void face (String name, Image face) throws Exception {
+                                System.out.println ("Making pyramid for " + name);
+                                makePyramid (face, new File (facePyramidBase, name), faceParameters, pool);
+                            }
+                        });
                 }
                 
                 if (archive) {
@@ -376,7 +439,10 @@ public class MakeImagePyramid {
                     deleteAll (pyramidBase);
                 }
             } finally {
-                deleteAll (facesOut);
+                // Stops the decoder and closes the file, even if rendering failed
+                if (stream != null) {
+                    stream.close ();
+                }
             }
         } else if (parameters.transform () == ImagePyramidParameters.Transform.FACE) {
             double fov = parameters.optFov (60);
@@ -388,6 +454,7 @@ public class MakeImagePyramid {
             double rollOffset = parameters.optRollOffset (0);
             int oversampling = parameters.optOversampling (1);
             double jitter = parameters.optJitter (-1);
+            double adaptiveOversampling = parameters.optAdaptiveOversampling (0.0f);
             
             int outputSizeW = parameters.optOutputWidth (640);
             int outputSizeH = parameters.optOutputHeight (480);
@@ -404,7 +471,12 @@ public class MakeImagePyramid {
             }
             output.configure (parameters);
             
-            Image in = Image.read (input);
+            Image in = readInput (input, parameters);
+            
+            File remapDirectory = null;
+            if (parameters.containsKey (ImagePyramidParameters.REMAP_DIRECTORY)) {
+                remapDirectory = new File (parameters.remapDirectory ());
+            }
             
             Image outImage = new EquirectangularToCubic ()
                 .input (in)
@@ -414,12 +486,83 @@ public class MakeImagePyramid {
                 .size (outputSizeW, outputSizeH)
                 .oversampling (oversampling)
                 .jitter (jitter)
+                .jitterPattern (jitterPattern (parameters), parameters.optJitterSeed (0))
+                .adaptiveOversampling (adaptiveOversampling)
+                .remapDirectory (remapDirectory)
+                .kernel (kernel (parameters))
+                .filter (filter (parameters))
                 .transform ();
             
-            output.write (outImage.toBuffered (), outputBase);
+            output.write (outImage.asBuffered (), outputBase);
+        } else {
+            makePyramid (input, outputBase, parameters, new ImagePool (0));
+        }
+    }
+    
+    /**
+     * Creates a transform for the "*-facemap" transforms, rendering faces of the size set 
+     * by the parameters.
+     */
+    private static AbstractSphericalCubicTransform<?> facemapTransform (Image in, ImagePyramidParameters parameters) throws Exception {
+        AbstractSphericalCubicTransform<?> xform = null;
+        if (parameters.transform () == ImagePyramidParameters.Transform.CYLINDER_FACEMAP) {
+            xform = new CylindricalToCubic ();
         } else {
-            makePyramid (input, outputBase, parameters);
+            xform = new EquirectangularToCubic ();
+        }
+        int xformFaceSize = parameters.optFaceSize (2048) + parameters.optOverlap (0);
+        xform.input (in)
+            .vfov (90)
+            .size (xformFaceSize, xformFaceSize)
+            .offset (parameters.optYawOffset (0), parameters.optPitchOffset (0), parameters.optRollOffset (0));
+        
+        if (parameters.containsKey (ImagePyramidParameters.TRANSFORM_PTO)) {
+            xform.fromHuginPto (new File (parameters.transformPto ()));
+        }
+        if (parameters.containsKey (ImagePyramidParameters.INPUT_VFOV)) {
+            xform.inputVfov (parameters.inputVfov ());
+        }
+        if (parameters.containsKey (ImagePyramidParameters.INPUT_HFOV)) {
+            xform.inputHfov (parameters.inputHfov ());
+        }
+        if (parameters.containsKey (ImagePyramidParameters.INPUT_HORIZON)) {
+            xform.inputHorizon (parameters.inputHorizon ());
+        }
+        if (parameters.containsKey (ImagePyramidParameters.REMAP_DIRECTORY)) {
+            xform.remapDirectory (new File (parameters.remapDirectory ()));
+        }
+        xform.kernel (kernel (parameters));
+        xform.filter (filter (parameters));
+        xform.facesInFlight (parameters.optFacesInFlight (2));
+        return xform;
+    }
+    
+    private static Image.Layout imageLayout (ImagePyramidParameters parameters) {
+        return Image.Layout.valueOf (parameters.optImageLayout (ImagePyramidParameters.ImageLayout.PACKED).name ());
+    }
+    
+    private static AbstractSphericalCubicTransform.Kernel kernel (ImagePyramidParameters parameters) {
+        return AbstractSphericalCubicTransform.Kernel.valueOf (parameters.optKernel (ImagePyramidParameters.Kernel.TABLE).name ());
+    }
+    
+    private static AbstractSphericalCubicTransform.Filter filter (ImagePyramidParameters parameters) {
+        return AbstractSphericalCubicTransform.Filter.valueOf (parameters.optFilter (ImagePyramidParameters.Filter.OVERSAMPLING).name ());
+    }
+    
+    private static JitterPattern.Type jitterPattern (ImagePyramidParameters parameters) {
+        return JitterPattern.Type.valueOf (parameters.optJitterPattern (ImagePyramidParameters.JitterPattern.RANDOM).name ());
+    }
+    
+    private static Image readInput (File input, ImagePyramidParameters parameters) throws Exception {
+        Image image = Image.read (input, imageLayout (parameters));
+        
+        float exposure = parameters.optExposure (0.0f);
+        float gamma = parameters.optGamma (1.0f);
+        if (exposure != 0.0f || gamma != 1.0f) {
+            System.out.println (String.format (Locale.US, "Applying exposure %.2f and gamma %.2f", exposure, gamma));
+            PixelOperation.exposure (exposure).then (PixelOperation.gamma (gamma)).apply (image);
         }
+        return image;
     }
     
     private static class PackageEntry {
@@ -494,9 +637,36 @@ public class MakeImagePyramid {
         }
     }
     
-    private static void makePyramid (File input, File outputBase, ImagePyramidParameters parameters) throws Exception {
-        BufferedImage full = ImageIO.read (input);
-        
+    private static void makePyramid (File input, File outputBase, ImagePyramidParameters parameters, ImagePool pool) throws Exception {
+        makePyramid (Image.read (input), outputBase, parameters, pool);
+    }
+    
+    /**
+     * Makes a pyramid from an image in memory. The image is not modified or 
+     * returned to the pool.
+     */
+    private static void makePyramid (Image full, File outputBase, ImagePyramidParameters parameters, ImagePool pool) throws Exception {
+        makePyramid (full, full.width (), full.height (), null, null, outputBase, parameters, pool);
+    }
+    
+    /**
+     * Makes the pyramid of a cube face by rendering the poster and each level 
+     * straight from the image map at its own resolution, instead of reducing the 
+     * full face level by level. The levels are rendered in parallel, smallest first.
+     *
+     * @param face the name of the face
+     * @param faceSize the width and height of the full face, including the overlap
+     * @param transforms creates the transforms to render with
+     */
+    private static void makePyramid (String face, int faceSize, FaceTransforms transforms, File outputBase, ImagePyramidParameters parameters) throws Exception {
+        makePyramid (null, faceSize, faceSize, face, transforms, outputBase, parameters, null);
+    }
+    
+    /**
+     * Makes a pyramid, either from an image in memory, or by rendering the levels of 
+     * a cube face if {@code full} is null.
+     */
+    private static void makePyramid (Image full, int w, int h, String face, FaceTransforms transforms, File outputBase, ImagePyramidParameters parameters, ImagePool pool) throws Exception {
         boolean outputPackage = parameters.format () == ImagePyramidParameters.Format.ARCHIVE;
         boolean dziLayout = parameters.folderLayout () == ImagePyramidParameters.FolderLayout.DZI;
         
@@ -541,9 +711,6 @@ public class MakeImagePyramid {
         
         descriptor.setSuffix (output.getSuffix ());
         
-        int w = full.getWidth ();
-        int h = full.getHeight ();
-        
         System.out.println ("Full image size: " + w + " x " + h + "");
         
         descriptor.setFullSize (w, h);
@@ -561,10 +728,16 @@ public class MakeImagePyramid {
             
             System.out.println ("Creating " + pw + " x " + ph + " poster image.");
             
-            BufferedImage poster = new BufferedImage (pw, ph, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g = poster.createGraphics ();
-            g.drawImage (full.getScaledInstance (pw, ph, java.awt.Image.SCALE_AREA_AVERAGING), 0, 0, null);
-            g.dispose ();
+            BufferedImage poster = null;
+            if (full == null) {
+                // Only the face rendering of the source is used, so the tiling does not matter
+                poster = new CubeTileSource (transforms.create (), w, w, 0, 1).face (face, pw).asBuffered ();
+            } else {
+                poster = new BufferedImage (pw, ph, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = poster.createGraphics ();
+                g.drawImage (full.asBuffered ().getScaledInstance (pw, ph, java.awt.Image.SCALE_AREA_AVERAGING), 0, 0, null);
+                g.dispose ();
+            }
             
             output.write (poster, new File (folders, "poster" + output.getSuffix ()));
         }   
@@ -585,28 +758,37 @@ public class MakeImagePyramid {
         
         int overlap = parameters.optOverlap (0);
         System.out.println ("Creating pyramid with " + maxZoom + " levels.");
-        for (int zoom = 0; zoom < maxZoom; ++zoom) {
-            File outputDir = 
-                ImagePyramidParameters.LevelNumbering.INVERT == parameters.levelNumbering ()
-                ?
-                new File (folders, String.valueOf (maxZoom - zoom - 1))
-                :
-                new File (folders, String.valueOf (zoom));
-            outputDir.mkdirs ();
-            tile (full, tileSize, overlap, outputDir, output);
-            
-            w = (w - overlap) / 2 + overlap;
-            h = (h - overlap) / 2 + overlap;
-            
-            if (zoom < maxZoom - 1) {
-                System.out.println ("Reducing by factor of 2...");
+        if (full == null) {
+            renderLevels (face, w, tileSize, overlap, maxZoom, transforms, folders, output, parameters);
+        } else {
+            BufferedImage tile = new BufferedImage (tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+            Image level = null;
+            for (int zoom = 0; zoom < maxZoom; ++zoom) {
+                File outputDir = 
+                    ImagePyramidParameters.LevelNumbering.INVERT == parameters.levelNumbering ()
+                    ?
+                    new File (folders, String.valueOf (maxZoom - zoom - 1))
+                    :
+                    new File (folders, String.valueOf (zoom));
+                outputDir.mkdirs ();
+                tile (full, tile, overlap, outputDir, output);
                 
-                BufferedImage reduced = new BufferedImage (w, h, BufferedImage.TYPE_INT_RGB);
-                Graphics2D g = reduced.createGraphics ();
-                g.drawImage (full.getScaledInstance (w, h, java.awt.Image.SCALE_AREA_AVERAGING), 0, 0, null);
-                g.dispose ();
-                full = reduced;
+                w = (w - overlap) / 2 + overlap;
+                h = (h - overlap) / 2 + overlap;
+                
+                if (zoom < maxZoom - 1) {
+                    System.out.println ("Reducing by factor of 2...");
+                    
+                    Image reduced = pool.acquire (w, h, Image.Layout.PACKED);
+                    Graphics2D g = reduced.asBuffered ().createGraphics ();
+                    g.drawImage (full.asBuffered ().getScaledInstance (w, h, java.awt.Image.SCALE_AREA_AVERAGING), 0, 0, null);
+                    g.dispose ();
+                    pool.release (level);
+                    level = reduced;
+                    full = reduced;
+                }
             }
+            pool.release (level);
         }
         
         descriptor.setTileSize (tileSize, overlap, (-maxZoom + 1));
@@ -624,6 +806,51 @@ public class MakeImagePyramid {
         }
     }
     
+    /**
+     * Renders the levels of a cube face pyramid straight from the image map, and 
+     * writes their tiles. Each level is rendered by its own {@link CubeTileSource} as a
+     * task on the shared executor of the transforms, and the smallest levels are started first.
+     *
+     * @param face the name of the face
+     * @param size the width and height of the full face, including the overlap
+     * @param tileSize the width and height of a tile, including the overlap
+     * @param overlap the number of pixels that neighbouring tiles overlap
+     * @param maxZoom the number of levels
+     */
+    private static void renderLevels (final String face, int size, int tileSize, int overlap, int maxZoom, FaceTransforms transforms, File folders, final Output output, ImagePyramidParameters parameters) throws Exception {
+        // The levels share the threads of the transforms, so that rendering several levels
+        // at once does not start more threads than there are processors
+        ExecutorService executor = AbstractCubicTransform.sharedExecutor ();
+        List<Future<Object>> levels = new ArrayList<Future<Object>> ();
+        for (int zoom = maxZoom - 1; zoom >= 0; --zoom) {
+            final int level = zoom;
+            final File outputDir = 
+                ImagePyramidParameters.LevelNumbering.INVERT == parameters.levelNumbering ()
+                ?
+                new File (folders, String.valueOf (maxZoom - zoom - 1))
+                :
+                new File (folders, String.valueOf (zoom));
+            final CubeTileSource source = new CubeTileSource (transforms.create (), size - overlap, tileSize - overlap, overlap, maxZoom);
+            levels.add (executor.submit (new Callable<Object> () {
+                        public Object call () throws Exception {
+                            outputDir.mkdirs ();
+                            int tiles = source.tiles (level);
+                            for (int ty = 0; ty < tiles; ++ty) {
+                                for (int tx = 0; tx < tiles; ++tx) {
+                                    System.out.println ("Generating tile " + tx + "," + ty + " of level " + level + "...");
+                                    Image tile = source.tile (face, level, tx, ty);
+                                    output.write (tile.asBuffered (), new File (outputDir, tx + "_" + ty + output.getSuffix ()));
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+        }
+        for (Future<Object> future : levels) {
+            future.get ();
+        }
+    }
+    
     
     private static void deleteAll (File f) {
         if (f.isDirectory ()) {
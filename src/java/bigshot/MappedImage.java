@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.awt.image.BufferedImage;
+
+/**
+ * A 30-bit (10 per channel) RGB image stored outside the Java heap, in a
+ * memory-mapped file. The operating system pages the pixels in and out on demand,
+ * so the image can be much larger than the Java heap, and can have more
+ * than <code>2<sup>31</sup></code> pixels.
+ * <p>
+ * The file is mapped in chunks of whole lines, each chunk smaller than 2GB.
+ */
+public class MappedImage extends Image {
+    
+    /**
+     * Maximum number of pixels in a mapped chunk.
+     */
+    private final static int CHUNK_PIXELS = 1 << 28;
+    
+    /**
+     * Number of lines in each chunk.
+     */
+    private final int linesPerChunk;
+    
+    /**
+     * The mapped chunks.
+     */
+    private final IntBuffer[] chunks;
+    
+    /**
+     * Creates an empty (all-black) image with the given width and height,
+     * backed by a temporary file. The file is deleted as soon as it has been
+     * mapped, so its disk space is freed when the image is garbage collected.
+     * Where a mapped file can't be deleted, it is deleted when the program exits.
+     */
+    public MappedImage (int width, int height) throws IOException {
+        this (width, height, File.createTempFile ("bigshot", ".image"), true);
+    }
+    
+    /**
+     * Creates an image with the given width and height, backed by the given
+     * file. If the file is large enough, the image is initialized with the contents
+     * of the file, otherwise the file is extended and the new part of the image is black.
+     * Changes to the image are written to the file.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param file the file to store the image data in
+     */
+    public MappedImage (int width, int height, File file) throws IOException {
+        this (width, height, file, false);
+    }
+    
+    /**
+     * Creates an image backed by the given file, deleting the file once it has
+     * been mapped if it is temporary.
+     */
+    private MappedImage (int width, int height, File file, boolean temporary) throws IOException {
+        super (width, height, (int[]) null);
+        this.linesPerChunk = Math.max (1, CHUNK_PIXELS / width);
+        this.chunks = new IntBuffer[(height + linesPerChunk - 1) / linesPerChunk];
+        
+        RandomAccessFile raf = new RandomAccessFile (file, "rw");
+        try {
+            FileChannel channel = raf.getChannel ();
+            for (int i = 0; i < chunks.length; ++i) {
+                long firstLine = (long) i * linesPerChunk;
+                long lines = Math.min (linesPerChunk, height - firstLine);
+                chunks[i] = channel.map (FileChannel.MapMode.READ_WRITE, firstLine * width * 4, lines * width * 4)
+                    .order (ByteOrder.nativeOrder ())
+                    .asIntBuffer ();
+            }
+        } finally {
+            raf.close ();
+            // The mappings keep the data after the file is deleted
+            if (temporary && !file.delete ()) {
+                file.deleteOnExit ();
+            }
+        }
+    }
+    
+    @Override
+        public Layout layout () {
+        return Layout.MAPPED;
+    }
+    
+    @Override
+        public int value (int x, int y) {
+        x %= width;
+        if (x < 0) {
+            x += width;
+        }
+        if (y >= height) {
+            y = height - 1;
+        }
+        if (y < 0) {
+            y = 0;
+        }
+        return chunks[y / linesPerChunk].get ((y % linesPerChunk) * width + x);
+    }
+    
+    @Override
+        public void value (int x, int y, int v) {
+        chunks[y / linesPerChunk].put ((y % linesPerChunk) * width + x, v);
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int r, int g, int b) {
+        value (x, y, (r << RED) | (g << GREEN) | (b << BLUE));
+    }
+    
+    @Override
+        public void multiply (int y0, int y1, int num, int denom) {
+        for (int y = y0; y < y1; ++y) {
+            IntBuffer chunk = chunks[y / linesPerChunk];
+            int i = (y % linesPerChunk) * width;
+            for (int x = 0; x < width; ++x) {
+                int v = chunk.get (i);
+                int r = ((v >> RED) & COMPONENT_MASK) * num / denom;
+                int g = ((v >> GREEN) & COMPONENT_MASK) * num / denom;
+                int b = ((v >> BLUE) & COMPONENT_MASK) * num / denom;
+                chunk.put (i, (r << RED) | (g << GREEN) | (b << BLUE));
+                ++i;
+            }
+        }
+    }
+    
+    @Override
+        public void copy (int x, int y, int w, int h, Image target) {
+        checkRegion (x, y, w, h);
+        target.checkRegion (0, 0, w, h);
+        for (int ry = 0; ry < h; ++ry) {
+            IntBuffer chunk = chunks[(y + ry) / linesPerChunk];
+            int rp = ((y + ry) % linesPerChunk) * width + x;
+            for (int rx = 0; rx < w; ++rx) {
+                target.value (rx, ry, chunk.get (rp));
+                ++rp;
+            }
+        }
+    }
+    
+    @Override
+        public void readLine (int y, int[] line) {
+        IntBuffer chunk = chunks[y / linesPerChunk];
+        int rp = (y % linesPerChunk) * width;
+        for (int x = 0; x < width; ++x) {
+            line[x] = pack (chunk.get (rp));
+            ++rp;
+        }
+    }
+    
+    @Override
+        public void writeLine (int y, int[] line) {
+        IntBuffer chunk = chunks[y / linesPerChunk];
+        int wp = (y % linesPerChunk) * width;
+        for (int x = 0; x < width; ++x) {
+            chunk.put (wp, unpack (line[x]));
+            ++wp;
+        }
+    }
+    
+    @Override
+        public BufferedImage asBuffered () throws Exception {
+        return toBuffered ();
+    }
+}
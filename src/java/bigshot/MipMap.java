@@ -0,0 +1,346 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.io.IOException;
+
+/**
+ * A chain of prefiltered, successively halved copies of an image map. A sample
+ * covering a large footprint in the image map is taken from the levels whose
+ * pixels are about as large as the footprint, so that it averages the whole
+ * footprint at the cost of a few bilinear lookups instead of a dense grid of samples.
+ * <p>
+ * Level <i>k</i> is a 2&times;2 box-filtered copy of level <i>k</i> - 1, and
+ * level 0 is the image map itself. The chain depends only on the image map, so it
+ * can be built once and sampled by any number of transforms, views and threads.
+ * Sampling is done through a {@link Sampler}, which holds the scratch buffers
+ * and must only be used by one thread at a time.
+ */
+public class MipMap {
+    
+    /**
+     * The levels, from the full image map down to a single pixel.
+     */
+    private final Image[] levels;
+    
+    /**
+     * Whether the image map wraps around horizontally.
+     */
+    private final boolean horizontalWrap;
+    
+    /**
+     * Builds the chain for an image map. High dynamic range image maps get
+     * {@link Image.Layout#HALF_FLOAT} levels. Image maps that are {@link Image.Layout#MAPPED}
+     * get mapped levels, so that the chain, which is a third of the size of the image map,
+     * stays outside the Java heap too. Other image maps get {@link Image.Layout#PACKED} levels.
+     *
+     * @param base the image map
+     * @param horizontalWrap whether the image map wraps around horizontally
+     */
+    public MipMap (Image base, boolean horizontalWrap) throws IOException {
+        this.horizontalWrap = horizontalWrap;
+        
+        int count = 1;
+        for (int w = base.width (), h = base.height (); w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) {
+            ++count;
+        }
+        
+        this.levels = new Image[count];
+        this.levels[0] = base;
+        Image.Layout layout = Image.Layout.PACKED;
+        if (base.isHighDynamicRange ()) {
+            layout = Image.Layout.HALF_FLOAT;
+        } else if (base.layout () == Image.Layout.MAPPED) {
+            layout = Image.Layout.MAPPED;
+        }
+        for (int i = 1; i < count; ++i) {
+            Image previous = levels[i - 1];
+            Image level = Image.create ((previous.width () + 1) / 2, (previous.height () + 1) / 2, layout);
+            if (base.isHighDynamicRange ()) {
+                reduceHighDynamicRange (previous, level);
+            } else {
+                reduce (previous, level);
+            }
+            levels[i] = level;
+        }
+    }
+    
+    /**
+     * Box-filters an image to half its size.
+     *
+     * @param source the image to reduce
+     * @param dest the image to write the result to
+     */
+    private void reduce (Image source, Image dest) {
+        int[] v00 = new int[3];
+        int[] v10 = new int[3];
+        int[] v01 = new int[3];
+        int[] v11 = new int[3];
+        for (int y = 0; y < dest.height (); ++y) {
+            int y0 = 2 * y;
+            int y1 = Math.min (y0 + 1, source.height () - 1);
+            for (int x = 0; x < dest.width (); ++x) {
+                int x0 = 2 * x;
+                int x1 = horizontalWrap ? x0 + 1 : Math.min (x0 + 1, source.width () - 1);
+                source.componentValue (x0, y0, v00);
+                source.componentValue (x1, y0, v10);
+                source.componentValue (x0, y1, v01);
+                source.componentValue (x1, y1, v11);
+                dest.componentValue (x, y,
+                    (v00[0] + v10[0] + v01[0] + v11[0] + 2) >> 2,
+                    (v00[1] + v10[1] + v01[1] + v11[1] + 2) >> 2,
+                    (v00[2] + v10[2] + v01[2] + v11[2] + 2) >> 2);
+            }
+        }
+    }
+    
+    /**
+     * Box-filters a high dynamic range image to half its size.
+     *
+     * @param source the image to reduce
+     * @param dest the image to write the result to
+     */
+    private void reduceHighDynamicRange (Image source, Image dest) {
+        float[] v00 = new float[3];
+        float[] v10 = new float[3];
+        float[] v01 = new float[3];
+        float[] v11 = new float[3];
+        for (int y = 0; y < dest.height (); ++y) {
+            int y0 = 2 * y;
+            int y1 = Math.min (y0 + 1, source.height () - 1);
+            for (int x = 0; x < dest.width (); ++x) {
+                int x0 = 2 * x;
+                int x1 = horizontalWrap ? x0 + 1 : Math.min (x0 + 1, source.width () - 1);
+                source.componentValue (x0, y0, v00);
+                source.componentValue (x1, y0, v10);
+                source.componentValue (x0, y1, v01);
+                source.componentValue (x1, y1, v11);
+                dest.componentValue (x, y,
+                    (v00[0] + v10[0] + v01[0] + v11[0]) * 0.25f,
+                    (v00[1] + v10[1] + v01[1] + v11[1]) * 0.25f,
+                    (v00[2] + v10[2] + v01[2] + v11[2]) * 0.25f);
+            }
+        }
+    }
+    
+    /**
+     * The full-resolution image map that the chain was built from.
+     */
+    public Image base () {
+        return levels[0];
+    }
+    
+    /**
+     * Whether the image map wraps around horizontally.
+     */
+    public boolean horizontalWrap () {
+        return horizontalWrap;
+    }
+    
+    /**
+     * Number of levels in the chain, including the image map itself.
+     */
+    public int levels () {
+        return levels.length;
+    }
+    
+    /**
+     * Gets a level of the chain.
+     *
+     * @param i the level, where 0 is the image map itself
+     */
+    public Image level (int i) {
+        return levels[i];
+    }
+    
+    /**
+     * Creates a sampler for this chain. Each thread should use its own sampler.
+     */
+    public Sampler sampler () {
+        return new Sampler ();
+    }
+    
+    /**
+     * Filtered sampling of the chain. The footprint of a sample is given as the
+     * parallelogram spanned by two vectors in image map pixels, typically the
+     * change in image map coordinates from one output pixel to the next along each axis.
+     * <p>
+     * With a single probe the footprint is approximated by a square as large as its
+     * longest side, and the two levels nearest that size are sampled bilinearly and
+     * blended (trilinear filtering). With more probes, elongated footprints are
+     * covered by several trilinear probes along their major axis, each sized to the
+     * minor axis and weighted by a Gaussian falloff from the center, which
+     * approximates an elliptical weighted average without blurring across the minor axis.
+     */
+    public final class Sampler {
+        
+        /**
+         * Integer sample from a single level.
+         */
+        private final int[] levelSample = new int[3];
+        
+        /**
+         * Floating-point sample from a single level.
+         */
+        private final float[] hdrLevelSample = new float[3];
+        
+        /**
+         * Weighted sum of the probes.
+         */
+        private final double[] sum = new double[3];
+        
+        /**
+         * Creates a sampler.
+         */
+        private Sampler () {
+        }
+        
+        /**
+         * Samples the chain.
+         *
+         * @param x the image map x-coordinate of the center of the footprint
+         * @param y the image map y-coordinate of the center of the footprint
+         * @param ax the x-component of the first axis of the footprint
+         * @param ay the y-component of the first axis of the footprint
+         * @param bx the x-component of the second axis of the footprint
+         * @param by the y-component of the second axis of the footprint
+         * @param maxProbes the largest number of trilinear probes to take along the major axis
+         * @param result the filtered value. result[0] = red, result[1] = green, result[2] = blue
+         */
+        public void sample (double x, double y, double ax, double ay, double bx, double by, int maxProbes, int[] result) {
+            filter (x, y, ax, ay, bx, by, maxProbes, false);
+            result[0] = (int) sum[0];
+            result[1] = (int) sum[1];
+            result[2] = (int) sum[2];
+        }
+        
+        /**
+         * Samples the chain, returning floating-point values where 1.0 is white.
+         *
+         * @param x the image map x-coordinate of the center of the footprint
+         * @param y the image map y-coordinate of the center of the footprint
+         * @param ax the x-component of the first axis of the footprint
+         * @param ay the y-component of the first axis of the footprint
+         * @param bx the x-component of the second axis of the footprint
+         * @param by the y-component of the second axis of the footprint
+         * @param maxProbes the largest number of trilinear probes to take along the major axis
+         * @param result the filtered value. result[0] = red, result[1] = green, result[2] = blue
+         */
+        public void sample (double x, double y, double ax, double ay, double bx, double by, int maxProbes, float[] result) {
+            filter (x, y, ax, ay, bx, by, maxProbes, true);
+            result[0] = (float) sum[0];
+            result[1] = (float) sum[1];
+            result[2] = (float) sum[2];
+        }
+        
+        /**
+         * Computes the filtered value into {@link #sum}.
+         */
+        private void filter (double x, double y, double ax, double ay, double bx, double by, int maxProbes, boolean highDynamicRange) {
+            sum[0] = 0.0;
+            sum[1] = 0.0;
+            sum[2] = 0.0;
+            
+            double a = Math.sqrt (ax * ax + ay * ay);
+            double b = Math.sqrt (bx * bx + by * by);
+            double major = Math.max (a, b);
+            double minor = Math.min (a, b);
+            
+            int probes = 1;
+            if (maxProbes > 1 && minor > 0.0) {
+                probes = (int) Math.min (maxProbes, Math.ceil (major / minor));
+            }
+            if (probes == 1) {
+                trilinear (x, y, major, 1.0, highDynamicRange);
+                return;
+            }
+            
+            double dx = a >= b ? ax : bx;
+            double dy = a >= b ? ay : by;
+            double width = Math.max (minor, major / probes);
+            double weights = 0.0;
+            for (int i = 0; i < probes; ++i) {
+                double t = (i + 0.5) / probes - 0.5;
+                weights += Math.exp (-8.0 * t * t);
+            }
+            for (int i = 0; i < probes; ++i) {
+                double t = (i + 0.5) / probes - 0.5;
+                trilinear (x + t * dx, y + t * dy, width, Math.exp (-8.0 * t * t) / weights, highDynamicRange);
+            }
+        }
+        
+        /**
+         * Adds a weighted trilinear probe to {@link #sum}.
+         *
+         * @param x the image map x-coordinate of the probe
+         * @param y the image map y-coordinate of the probe
+         * @param footprint the width of the probe, in image map pixels
+         * @param weight the weight of the probe
+         * @param highDynamicRange whether to sample floating-point values
+         */
+        private void trilinear (double x, double y, double footprint, double weight, boolean highDynamicRange) {
+            double lod = footprint > 1.0 ? Math.log (footprint) / Math.log (2.0) : 0.0;
+            if (lod > levels.length - 1 || lod != lod) {
+                lod = levels.length - 1;
+            }
+            int level = (int) lod;
+            double f = lod - level;
+            bilinear (level, x, y, weight * (1.0 - f), highDynamicRange);
+            if (f > 0.0) {
+                bilinear (level + 1, x, y, weight * f, highDynamicRange);
+            }
+        }
+        
+        /**
+         * Adds a weighted bilinear sample of one level to {@link #sum}.
+         *
+         * @param level the level to sample
+         * @param x the image map x-coordinate of the sample, in level 0 pixels
+         * @param y the image map y-coordinate of the sample, in level 0 pixels
+         * @param weight the weight of the sample
+         * @param highDynamicRange whether to sample floating-point values
+         */
+        private void bilinear (int level, double x, double y, double weight, boolean highDynamicRange) {
+            Image image = levels[level];
+            if (level > 0) {
+                double scale = 1.0 / (1 << level);
+                x = (x + 0.5) * scale - 0.5;
+                y = (y + 0.5) * scale - 0.5;
+            }
+            if (horizontalWrap) {
+                x %= image.width ();
+                if (x < 0) {
+                    x += image.width ();
+                }
+            } else {
+                x = Math.max (0.0, Math.min (x, image.width () - 1));
+            }
+            y = Math.max (0.0, Math.min (y, image.height () - 1));
+            
+            if (highDynamicRange) {
+                image.sampleComponents (x, y, hdrLevelSample);
+                sum[0] += weight * hdrLevelSample[0];
+                sum[1] += weight * hdrLevelSample[1];
+                sum[2] += weight * hdrLevelSample[2];
+            } else {
+                image.sampleComponents (x, y, levelSample);
+                sum[0] += weight * levelSample[0];
+                sum[1] += weight * levelSample[1];
+                sum[2] += weight * levelSample[2];
+            }
+        }
+    }
+}
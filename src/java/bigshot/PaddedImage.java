@@ -0,0 +1,227 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A 30-bit (10 per channel) RGB image with a guard band around it. The
+ * border columns are copies of the columns at the opposite edge of the image,
+ * and the border rows are copies of the top and bottom rows, mirroring the
+ * wrapping and clamping done by {@link Image#value(int,int)}. Samples in the
+ * interior of the guard band can therefore be computed without any
+ * bounds checks.
+ */
+public class PaddedImage extends Image {
+    
+    /**
+     * Width of the border, in pixels.
+     */
+    private final static int BORDER = 2;
+    
+    /**
+     * Number of ints between the start of two consecutive rows.
+     */
+    private final int stride;
+    
+    /**
+     * Image data, including the border.
+     */
+    private final int[] data;
+    
+    /**
+     * Creates an empty (all-black) image with the given width and height.
+     */
+    public PaddedImage (int width, int height) {
+        super (width, height, (int[]) null);
+        if (width < BORDER) {
+            throw new IllegalArgumentException ("width < " + BORDER + " : " + width);
+        }
+        this.stride = width + 2 * BORDER;
+        this.data = new int[stride * (height + 2 * BORDER)];
+    }
+    
+    /**
+     * Computes the index of a pixel in the padded storage. The x-coordinate
+     * wraps around, and the y-coordinate is clamped to the image.
+     */
+    private int paddedIndex (int x, int y) {
+        x %= width;
+        if (x < 0) {
+            x += width;
+        }
+        if (y >= height) {
+            y = height - 1;
+        }
+        if (y < 0) {
+            y = 0;
+        }
+        return (y + BORDER) * stride + x + BORDER;
+    }
+    
+    @Override
+        public Layout layout () {
+        return Layout.PADDED;
+    }
+    
+    @Override
+        public int border () {
+        return BORDER;
+    }
+    
+    @Override
+        public int value (int x, int y) {
+        return data[paddedIndex (x, y)];
+    }
+    
+    @Override
+        public void value (int x, int y, int v) {
+        int firstRow = y + BORDER;
+        int lastRow = y + BORDER;
+        if (y == 0) {
+            firstRow = 0;
+        }
+        if (y == height - 1) {
+            lastRow = height + 2 * BORDER - 1;
+        }
+        for (int row = firstRow; row <= lastRow; ++row) {
+            int i = row * stride + x + BORDER;
+            data[i] = v;
+            if (x < BORDER) {
+                data[i + width] = v;
+            }
+            if (x >= width - BORDER) {
+                data[i - width] = v;
+            }
+        }
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int r, int g, int b) {
+        value (x, y, (r << RED) | (g << GREEN) | (b << BLUE));
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int[] result) {
+        int v = data[paddedIndex (x, y)];
+        result[0] = (v >> RED) & COMPONENT_MASK;
+        result[1] = (v >> GREEN) & COMPONENT_MASK;
+        result[2] = (v >> BLUE) & COMPONENT_MASK;
+    }
+    
+    @Override
+        public void sampleInterior (double x, double y, int[] result) {
+        int x0 = (int) x;
+        int y0 = (int) y;
+        double xf = x - x0;
+        double yf = y - y0;
+        double xf1 = 1 - xf;
+        double yf1 = 1 - yf;
+        
+        int i = (y0 + BORDER) * stride + x0 + BORDER;
+        int v00 = data[i];
+        int v10 = data[i + 1];
+        int v01 = data[i + stride];
+        int v11 = data[i + stride + 1];
+        
+        result[0] = (int) (
+            yf1 * (xf1 * ((v00 >> RED) & COMPONENT_MASK) + xf * ((v10 >> RED) & COMPONENT_MASK)) +
+            yf  * (xf1 * ((v01 >> RED) & COMPONENT_MASK) + xf * ((v11 >> RED) & COMPONENT_MASK)));
+        result[1] = (int) (
+            yf1 * (xf1 * ((v00 >> GREEN) & COMPONENT_MASK) + xf * ((v10 >> GREEN) & COMPONENT_MASK)) +
+            yf  * (xf1 * ((v01 >> GREEN) & COMPONENT_MASK) + xf * ((v11 >> GREEN) & COMPONENT_MASK)));
+        result[2] = (int) (
+            yf1 * (xf1 * ((v00 >> BLUE) & COMPONENT_MASK) + xf * ((v10 >> BLUE) & COMPONENT_MASK)) +
+            yf  * (xf1 * ((v01 >> BLUE) & COMPONENT_MASK) + xf * ((v11 >> BLUE) & COMPONENT_MASK)));
+    }
+    
+    @Override
+        public void multiply (int y0, int y1, int num, int denom) {
+        for (int y = y0; y < y1; ++y) {
+            int i = (y + BORDER) * stride + BORDER;
+            for (int x = 0; x < width; ++x) {
+                int v = data[i];
+                int r = ((v >> RED) & COMPONENT_MASK) * num / denom;
+                int g = ((v >> GREEN) & COMPONENT_MASK) * num / denom;
+                int b = ((v >> BLUE) & COMPONENT_MASK) * num / denom;
+                data[i] = (r << RED) | (g << GREEN) | (b << BLUE);
+                ++i;
+            }
+        }
+        updateBorder (y0, y1);
+    }
+    
+    @Override
+        public void readLine (int y, int[] line) {
+        int rp = (y + BORDER) * stride + BORDER;
+        for (int x = 0; x < width; ++x) {
+            line[x] = pack (data[rp]);
+            ++rp;
+        }
+    }
+    
+    @Override
+        public void writeLine (int y, int[] line) {
+        int wp = (y + BORDER) * stride + BORDER;
+        for (int x = 0; x < width; ++x) {
+            data[wp] = unpack (line[x]);
+            ++wp;
+        }
+        updateBorder (y, y + 1);
+    }
+    
+    /**
+     * Copies the pixels along the image edges into the border, for
+     * a range of lines.
+     *
+     * @param y0 the first line to update the border for
+     * @param y1 one past the last line to update the border for
+     */
+    private void updateBorder (int y0, int y1) {
+        for (int y = y0; y < y1; ++y) {
+            int row = (y + BORDER) * stride;
+            System.arraycopy (data, row + width, data, row, BORDER);
+            System.arraycopy (data, row + BORDER, data, row + BORDER + width, BORDER);
+        }
+        if (y0 == 0) {
+            for (int row = 0; row < BORDER; ++row) {
+                System.arraycopy (data, BORDER * stride, data, row * stride, stride);
+            }
+        }
+        if (y1 == height) {
+            int last = (height + BORDER - 1) * stride;
+            for (int row = height + BORDER; row < height + 2 * BORDER; ++row) {
+                System.arraycopy (data, last, data, row * stride, stride);
+            }
+        }
+    }
+    
+    /**
+     * Returns a view of a rectangular region of this image. The view is a
+     * packed image without a border. Pixels written through the view are not 
+     * copied to the border of this image.
+     */
+    @Override
+        public Image region (int x, int y, int w, int h) {
+        checkRegion (x, y, w, h);
+        return new Image (w, h, data, (y + BORDER) * stride + x + BORDER, stride);
+    }
+    
+    @Override
+        public BufferedImage asBuffered () throws Exception {
+        return view (data, BORDER * stride + BORDER, stride);
+    }
+}
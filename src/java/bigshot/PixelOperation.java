@@ -0,0 +1,337 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A per-channel pixel operation, such as an exposure or gamma correction.
+ * The operation is stored as one lookup table per channel, so any combination
+ * of operations costs one table lookup per channel and pixel. Operations
+ * are applied to whole images in parallel, in bands of lines.
+ * <p>
+ * Channel values are in the range [0, 255], the range of the 8-bit
+ * images read by {@link Image#read(java.io.File)}. Results are clamped to that range.
+ * <p>
+ * The operation also keeps the curves it was built from, so that high dynamic range
+ * images, whose channel values are floats where 1.0 is white, can evaluate it
+ * in floating point with {@link #apply(int,float)}, without clamping.
+ */
+public class PixelOperation {
+    
+    /**
+     * The largest channel value.
+     */
+    private final static int WHITE = 255;
+    
+    /**
+     * Number of entries in each lookup table.
+     */
+    private final static int TABLE_SIZE = 1024;
+    
+    /**
+     * Minimum number of lines in each parallel task.
+     */
+    private final static int MIN_LINES = 64;
+    
+    /**
+     * Lookup table for the red channel.
+     */
+    final int[] red;
+    
+    /**
+     * Lookup table for the green channel.
+     */
+    final int[] green;
+    
+    /**
+     * Lookup table for the blue channel.
+     */
+    final int[] blue;
+    
+    /**
+     * The curves of the operation, in the order they are applied.
+     */
+    private final Curve[] curves;
+    
+    /**
+     * A curve that applies a gamma curve and then scales and offsets each channel.
+     * Channel values are floats, where 1.0 is white.
+     */
+    private static class Curve {
+        
+        /**
+         * The gamma value.
+         */
+        private final double gamma;
+        
+        /**
+         * The factor to scale each channel by.
+         */
+        private final double[] scale;
+        
+        /**
+         * The value to add to each channel after scaling.
+         */
+        private final double[] offset;
+        
+        /**
+         * Creates a curve.
+         */
+        public Curve (double gamma, double[] scale, double[] offset) {
+            this.gamma = gamma;
+            this.scale = scale;
+            this.offset = offset;
+        }
+        
+        /**
+         * Applies the curve to a channel value.
+         *
+         * @param channel the channel: 0 for red, 1 for green and 2 for blue
+         * @param v the channel value
+         */
+        public double apply (int channel, double v) {
+            if (gamma != 1.0) {
+                v = Math.pow (Math.max (v, 0.0), 1.0 / gamma);
+            }
+            return v * scale[channel] + offset[channel];
+        }
+    }
+    
+    /**
+     * Creates a new operation from lookup tables and the curves they were computed from.
+     */
+    private PixelOperation (int[] red, int[] green, int[] blue, Curve[] curves) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.curves = curves;
+    }
+    
+    /**
+     * Creates a table that applies a gamma curve and then scales each value.
+     */
+    private static int[] table (double scale, double gamma) {
+        int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            double v = i;
+            if (gamma != 1.0) {
+                v = Math.pow (Math.min (v, WHITE) / WHITE, 1.0 / gamma) * WHITE;
+            }
+            table[i] = clamp (v * scale);
+        }
+        return table;
+    }
+    
+    /**
+     * Rounds and clamps a channel value to the range [0, 255].
+     */
+    private static int clamp (double v) {
+        return MathUtil.clamp (0, (int) Math.round (v), WHITE);
+    }
+    
+    /**
+     * Creates an operation that leaves the image unchanged.
+     */
+    public static PixelOperation identity () {
+        return channels (1.0, 1.0, 1.0);
+    }
+    
+    /**
+     * Creates an operation that scales all channels by a factor.
+     *
+     * @param factor the factor to scale by
+     */
+    public static PixelOperation scale (double factor) {
+        return channels (factor, factor, factor);
+    }
+    
+    /**
+     * Creates an operation that scales each channel by its own factor.
+     * Use this for white balance corrections.
+     *
+     * @param r the factor to scale the red channel by
+     * @param g the factor to scale the green channel by
+     * @param b the factor to scale the blue channel by
+     */
+    public static PixelOperation channels (double r, double g, double b) {
+        return new PixelOperation (table (r, 1.0), table (g, 1.0), table (b, 1.0), 
+            new Curve[] { new Curve (1.0, new double[] { r, g, b }, new double[3]) });
+    }
+    
+    /**
+     * Creates an operation that changes the exposure.
+     *
+     * @param stops the exposure change, in stops. Positive values brighten the image.
+     */
+    public static PixelOperation exposure (double stops) {
+        return scale (Math.pow (2, stops));
+    }
+    
+    /**
+     * Creates an operation that applies a gamma curve.
+     *
+     * @param gamma the gamma value. Values greater than one brighten the image.
+     */
+    public static PixelOperation gamma (double gamma) {
+        int[] table = table (1.0, gamma);
+        return new PixelOperation (table, table, table, 
+            new Curve[] { new Curve (gamma, new double[] { 1.0, 1.0, 1.0 }, new double[3]) });
+    }
+    
+    /**
+     * Creates an operation that stretches the range [black, white] to the full
+     * range of channel values.
+     *
+     * @param black the channel value that becomes black
+     * @param white the channel value that becomes white
+     */
+    public static PixelOperation levels (int black, int white) {
+        if (white <= black) {
+            throw new IllegalArgumentException ("white <= black : " + white + " <= " + black);
+        }
+        int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            table[i] = clamp ((i - black) * (double) WHITE / (white - black));
+        }
+        double scale = (double) WHITE / (white - black);
+        double offset = -(double) black / (white - black);
+        return new PixelOperation (table, table, table, 
+            new Curve[] { new Curve (1.0, new double[] { scale, scale, scale }, new double[] { offset, offset, offset }) });
+    }
+    
+    /**
+     * Creates an operation that first applies this operation, then
+     * the given operation.
+     *
+     * @param next the operation to apply after this one
+     */
+    public PixelOperation then (PixelOperation next) {
+        Curve[] composed = new Curve[curves.length + next.curves.length];
+        System.arraycopy (curves, 0, composed, 0, curves.length);
+        System.arraycopy (next.curves, 0, composed, curves.length, next.curves.length);
+        return new PixelOperation (compose (red, next.red), compose (green, next.green), compose (blue, next.blue), composed);
+    }
+    
+    /**
+     * Creates the table for {@code second (first (v))}.
+     */
+    private static int[] compose (int[] first, int[] second) {
+        int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            table[i] = second[first[i]];
+        }
+        return table;
+    }
+    
+    /**
+     * Applies the operation to a range of lines of an image.
+     *
+     * @param image the image to modify
+     * @param y0 the first line to apply the operation to
+     * @param y1 one-past the last line to apply the operation to
+     */
+    public void apply (Image image, int y0, int y1) {
+        image.apply (y0, y1, this);
+    }
+    
+    /**
+     * Applies the operation to a floating-point channel value, where 1.0 is white.
+     * The curves of the operation are evaluated directly, so values above 1.0
+     * are neither clamped nor looked up in the tables.
+     *
+     * @param channel the channel: 0 for red, 1 for green and 2 for blue
+     * @param v the channel value
+     * @return the new channel value
+     */
+    public float apply (int channel, float v) {
+        double result = v;
+        for (Curve curve : curves) {
+            result = curve.apply (channel, result);
+        }
+        return (float) result;
+    }
+    
+    /**
+     * Applies the operation to an image, in parallel.
+     *
+     * @param image the image to modify
+     */
+    public void apply (final Image image) throws Exception {
+        forEachBand (image.height (), new Band () {
+                public void run (int y0, int y1) {
+                    apply (image, y0, y1);
+                }
+            });
+    }
+    
+    /**
+     * Blends an image into another, in parallel. Each channel of {@code target}
+     * becomes {@code (1 - alpha) * target + alpha * other}.
+     *
+     * @param target the image to modify
+     * @param other the image to blend into the target. Must have the same size as the target.
+     * @param alpha the weight of the other image, between 0 and 1
+     */
+    public static void blend (final Image target, final Image other, final double alpha) throws Exception {
+        if (target.width () != other.width () || target.height () != other.height ()) {
+            throw new IllegalArgumentException ("Image sizes differ: " +
+                target.width () + "x" + target.height () + " != " + other.width () + "x" + other.height ());
+        }
+        forEachBand (target.height (), new Band () {
+                public void run (int y0, int y1) {
+                    target.blend (y0, y1, other, alpha);
+                }
+            });
+    }
+    
+    /**
+     * A band of lines to process.
+     */
+    private static interface Band {
+        public void run (int y0, int y1);
+    }
+    
+    /**
+     * Splits the lines {@code [0, height)} into bands and processes them in parallel
+     * on the executor shared with the transforms.
+     */
+    private static void forEachBand (int height, final Band band) throws Exception {
+        final int STEPS = Runtime.getRuntime ().availableProcessors () * 2;
+        final int STEP = Math.max (height / STEPS, MIN_LINES);
+        
+        ExecutorService es = AbstractCubicTransform.sharedExecutor ();
+        List<Callable<Object>> callables = new ArrayList<Callable<Object>> ();
+        for (int topLine = 0; topLine < height; topLine += STEP) {
+            final int startY = topLine;
+            final int endY = Math.min (startY + STEP, height);
+            callables.add (new Callable<Object> () {
+                    public Object call () throws Exception {
+                        band.run (startY, endY);
+                        return null;
+                    }
+                });
+        }
+        for (Future<Object> f : es.invokeAll (callables)) {
+            f.get ();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A 30-bit (10 per channel) RGB image that stores each channel in
+ * a separate array. Sampling a pixel fetches each channel directly
+ * instead of unpacking it from a packed value.
+ */
+public class PlanarImage extends Image {
+    
+    /**
+     * Red channel data.
+     */
+    private final short[] red;
+    
+    /**
+     * Green channel data.
+     */
+    private final short[] green;
+    
+    /**
+     * Blue channel data.
+     */
+    private final short[] blue;
+    
+    /**
+     * Creates an empty (all-black) image with the given width and height.
+     */
+    public PlanarImage (int width, int height) {
+        super (width, height, (int[]) null);
+        this.red = new short[width * height];
+        this.green = new short[width * height];
+        this.blue = new short[width * height];
+    }
+    
+    @Override
+        public Layout layout () {
+        return Layout.PLANAR;
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int[] result) {
+        int i = index (x, y);
+        result[0] = red[i];
+        result[1] = green[i];
+        result[2] = blue[i];
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int r, int g, int b) {
+        int i = y * width + x;
+        red[i] = (short) r;
+        green[i] = (short) g;
+        blue[i] = (short) b;
+    }
+    
+    @Override
+        public int value (int x, int y) {
+        int i = index (x, y);
+        return (red[i] << RED) | (green[i] << GREEN) | (blue[i] << BLUE);
+    }
+    
+    @Override
+        public void value (int x, int y, int v) {
+        componentValue (x, y, (v >> RED) & COMPONENT_MASK, (v >> GREEN) & COMPONENT_MASK, (v >> BLUE) & COMPONENT_MASK);
+    }
+    
+    @Override
+        protected int componentValue (int x, int y, int shift) {
+        int i = index (x, y);
+        switch (shift) {
+        case RED:
+            return red[i];
+        case GREEN:
+            return green[i];
+        default:
+            return blue[i];
+        }
+    }
+    
+    @Override
+        public void sampleComponents (double x, double y, int[] result) {
+        int x0 = (int) x;
+        int y0 = (int) y;
+        double xf = x - x0;
+        double yf = y - y0;
+        
+        int i00 = index (x0, y0);
+        int i10 = index (x0 + 1, y0);
+        int i01 = index (x0, y0 + 1);
+        int i11 = index (x0 + 1, y0 + 1);
+        
+        result[0] = (int) lerp (lerp (red[i00], red[i10], xf), lerp (red[i01], red[i11], xf), yf);
+        result[1] = (int) lerp (lerp (green[i00], green[i10], xf), lerp (green[i01], green[i11], xf), yf);
+        result[2] = (int) lerp (lerp (blue[i00], blue[i10], xf), lerp (blue[i01], blue[i11], xf), yf);
+    }
+    
+    @Override
+        public void multiply (int y0, int y1, int num, int denom) {
+        for (int i = y0 * width; i < y1 * width; ++i) {
+            red[i] = (short) (red[i] * num / denom);
+            green[i] = (short) (green[i] * num / denom);
+            blue[i] = (short) (blue[i] * num / denom);
+        }
+    }
+    
+    @Override
+        public void apply (int y0, int y1, int[] redTable, int[] greenTable, int[] blueTable) {
+        for (int i = y0 * width; i < y1 * width; ++i) {
+            red[i] = (short) redTable[red[i]];
+            green[i] = (short) greenTable[green[i]];
+            blue[i] = (short) blueTable[blue[i]];
+        }
+    }
+    
+    @Override
+        public void readLine (int y, int[] line) {
+        int rp = y * width;
+        for (int x = 0; x < width; ++x) {
+            line[x] =
+                ((red[rp] & 0xff) << 16) |
+                ((green[rp] & 0xff) << 8) |
+                (blue[rp] & 0xff);
+            ++rp;
+        }
+    }
+    
+    @Override
+        public void writeLine (int y, int[] line) {
+        int wp = y * width;
+        for (int x = 0; x < width; ++x) {
+            int v = line[x];
+            red[wp] = (short) ((v >> 16) & 0xff);
+            green[wp] = (short) ((v >> 8) & 0xff);
+            blue[wp] = (short) (v & 0xff);
+            ++wp;
+        }
+    }
+    
+    @Override
+        public BufferedImage asBuffered () throws Exception {
+        return toBuffered ();
+    }
+}
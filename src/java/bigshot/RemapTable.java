@@ -0,0 +1,398 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The image map coordinates that a transform samples for each point of its
+ * oversampling grid. Transforms with the same geometry sample the same coordinates,
+ * so a table computed once can be replayed for any number of image maps, skipping
+ * the rotation and inverse trigonometry for every sample.
+ * <p>
+ * Coordinates are stored as pairs of floats, which are exact to 1/256 of a pixel for
+ * image maps up to 65536 pixels wide. Tables can be written to a file and mapped back
+ * into memory, and are kept in a process-wide cache that the garbage collector may clear.
+ * Tables read from a file are read-only.
+ * <p>
+ * A table file starts with a {@link #HEADER_SIZE} byte header, in big-endian byte order:
+ * the magic number {@link #MAGIC}, the format {@link #VERSION}, the byte order of the
+ * coordinates (0 for big-endian, 1 for little-endian), and the width and height of the
+ * sample grid. The coordinates follow, line by line.
+ */
+public class RemapTable {
+    
+    /**
+     * Maximum number of samples in a chunk. Two floats per sample keeps each
+     * chunk below 2GB, so that it can be mapped.
+     */
+    private final static int CHUNK_SAMPLES = 1 << 27;
+    
+    /**
+     * Magic number at the start of a table file: "BSRT" in ASCII.
+     */
+    public final static int MAGIC = 0x42535254;
+    
+    /**
+     * Version of the file format.
+     */
+    public final static int VERSION = 1;
+    
+    /**
+     * Size of the file header, in bytes. A multiple of 8, so that the coordinates
+     * that follow it are aligned.
+     */
+    public final static int HEADER_SIZE = 32;
+    
+    /**
+     * Tables that have been computed or read, by key.
+     */
+    private final static Map<String,SoftReference<RemapTable>> cache = new HashMap<String,SoftReference<RemapTable>> ();
+    
+    /**
+     * Width of the sample grid.
+     */
+    private final int width;
+    
+    /**
+     * Height of the sample grid.
+     */
+    private final int height;
+    
+    /**
+     * Number of lines in each chunk.
+     */
+    private final int linesPerChunk;
+    
+    /**
+     * The coordinates, as x, y pairs, in chunks of whole lines.
+     */
+    private final FloatBuffer[] chunks;
+    
+    /**
+     * The temporary file that the table is being recorded into, or null if the table is
+     * in the Java heap or has been read from a file.
+     */
+    private File recording = null;
+    
+    /**
+     * Creates an empty table in the Java heap.
+     *
+     * @param width the width of the sample grid
+     * @param height the height of the sample grid
+     */
+    public RemapTable (int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.linesPerChunk = Math.max (1, CHUNK_SAMPLES / width);
+        this.chunks = new FloatBuffer[(height + linesPerChunk - 1) / linesPerChunk];
+        for (int i = 0; i < chunks.length; ++i) {
+            int lines = Math.min (linesPerChunk, height - i * linesPerChunk);
+            chunks[i] = FloatBuffer.wrap (new float[lines * width * 2]);
+        }
+    }
+    
+    /**
+     * Creates a table by mapping the coordinates of a table file.
+     *
+     * @param mode the mode to map the file in
+     * @param order the byte order of the coordinates in the file
+     */
+    private RemapTable (int width, int height, FileChannel channel, FileChannel.MapMode mode, ByteOrder order) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.linesPerChunk = Math.max (1, CHUNK_SAMPLES / width);
+        this.chunks = new FloatBuffer[(height + linesPerChunk - 1) / linesPerChunk];
+        for (int i = 0; i < chunks.length; ++i) {
+            long firstLine = (long) i * linesPerChunk;
+            long lines = Math.min (linesPerChunk, height - firstLine);
+            chunks[i] = channel.map (mode, HEADER_SIZE + firstLine * width * 8, lines * width * 8)
+                .order (order)
+                .asFloatBuffer ();
+        }
+    }
+    
+    /**
+     * Creates an empty table that is recorded straight into a temporary file next to
+     * the given file, instead of in the Java heap. Once the table is complete,
+     * {@link #write(File)} moves the temporary file into place. The temporary file is
+     * deleted when the program exits if the table is never written.
+     *
+     * @param file the file that the table will be written to
+     * @param width the width of the sample grid
+     * @param height the height of the sample grid
+     */
+    public static RemapTable create (File file, int width, int height) throws IOException {
+        File parent = file.getAbsoluteFile ().getParentFile ();
+        if (parent != null && !parent.isDirectory () && !parent.mkdirs ()) {
+            throw new IOException ("Unable to create " + parent.getPath ());
+        }
+        File temp = File.createTempFile (file.getName (), ".tmp", parent);
+        temp.deleteOnExit ();
+        RandomAccessFile raf = new RandomAccessFile (temp, "rw");
+        try {
+            FileChannel channel = raf.getChannel ();
+            raf.setLength (HEADER_SIZE + (long) width * height * 8);
+            writeHeader (channel, width, height, ByteOrder.nativeOrder ());
+            RemapTable table = new RemapTable (width, height, channel, FileChannel.MapMode.READ_WRITE, ByteOrder.nativeOrder ());
+            table.recording = temp;
+            return table;
+        } finally {
+            raf.close ();
+        }
+    }
+    
+    /**
+     * Width of the sample grid.
+     */
+    public int width () {
+        return width;
+    }
+    
+    /**
+     * Height of the sample grid.
+     */
+    public int height () {
+        return height;
+    }
+    
+    /**
+     * Gets the image map coordinates for a sample.
+     *
+     * @param x the x-coordinate of the sample
+     * @param y the y-coordinate of the sample
+     * @param result the image map coordinates, in pixels
+     */
+    public void get (int x, int y, Point2D result) {
+        FloatBuffer chunk = chunks[y / linesPerChunk];
+        int i = ((y % linesPerChunk) * width + x) * 2;
+        result.x = chunk.get (i);
+        result.y = chunk.get (i + 1);
+    }
+    
+    /**
+     * Sets the image map coordinates for a sample.
+     *
+     * @param x the x-coordinate of the sample
+     * @param y the y-coordinate of the sample
+     * @param p the image map coordinates, in pixels
+     */
+    public void set (int x, int y, Point2D p) {
+        FloatBuffer chunk = chunks[y / linesPerChunk];
+        int i = ((y % linesPerChunk) * width + x) * 2;
+        chunk.put (i, (float) p.x);
+        chunk.put (i + 1, (float) p.y);
+    }
+    
+    /**
+     * Gets the image map coordinates for a run of samples along a line.
+     *
+     * @param x the x-coordinate of the first sample
+     * @param y the y-coordinate of the samples
+     * @param xs the image map x-coordinate of each sample, in pixels
+     * @param ys the image map y-coordinate of each sample, in pixels
+     * @param n the number of samples
+     */
+    public void get (int x, int y, double[] xs, double[] ys, int n) {
+        FloatBuffer chunk = chunks[y / linesPerChunk];
+        int i = ((y % linesPerChunk) * width + x) * 2;
+        for (int j = 0; j < n; ++j) {
+            xs[j] = chunk.get (i);
+            ys[j] = chunk.get (i + 1);
+            i += 2;
+        }
+    }
+    
+    /**
+     * Sets the image map coordinates for a run of samples along a line.
+     *
+     * @param x the x-coordinate of the first sample
+     * @param y the y-coordinate of the samples
+     * @param xs the image map x-coordinate of each sample, in pixels
+     * @param ys the image map y-coordinate of each sample, in pixels
+     * @param n the number of samples
+     */
+    public void set (int x, int y, double[] xs, double[] ys, int n) {
+        FloatBuffer chunk = chunks[y / linesPerChunk];
+        int i = ((y % linesPerChunk) * width + x) * 2;
+        for (int j = 0; j < n; ++j) {
+            chunk.put (i, (float) xs[j]);
+            chunk.put (i + 1, (float) ys[j]);
+            i += 2;
+        }
+    }
+    
+    /**
+     * Writes the table to a file, in native byte order. The table is first written to
+     * a temporary file next to the destination, which is then renamed, so that a
+     * partially written table is never read. The directory of the file is created
+     * if it does not exist. Tables made by {@link #create(File,int,int)} are already
+     * in their temporary file, so it is only renamed.
+     *
+     * @param file the file to write to
+     */
+    public void write (File file) throws IOException {
+        File temp = recording;
+        if (temp == null) {
+            File parent = file.getAbsoluteFile ().getParentFile ();
+            if (parent != null && !parent.isDirectory () && !parent.mkdirs ()) {
+                throw new IOException ("Unable to create " + parent.getPath ());
+            }
+            temp = new File (file.getPath () + ".tmp");
+            RandomAccessFile raf = new RandomAccessFile (temp, "rw");
+            try {
+                FileChannel channel = raf.getChannel ();
+                raf.setLength (HEADER_SIZE + (long) width * height * 8);
+                writeHeader (channel, width, height, ByteOrder.nativeOrder ());
+                for (int i = 0; i < chunks.length; ++i) {
+                    long firstLine = (long) i * linesPerChunk;
+                    long lines = Math.min (linesPerChunk, height - firstLine);
+                    FloatBuffer source = chunks[i].duplicate ();
+                    source.rewind ();
+                    channel.map (FileChannel.MapMode.READ_WRITE, HEADER_SIZE + firstLine * width * 8, lines * width * 8)
+                        .order (ByteOrder.nativeOrder ())
+                        .asFloatBuffer ()
+                        .put (source);
+                }
+            } finally {
+                raf.close ();
+            }
+        }
+        recording = null;
+        if (!temp.renameTo (file)) {
+            file.delete ();
+            if (!temp.renameTo (file)) {
+                temp.delete ();
+                throw new IOException ("Unable to rename " + temp.getPath () + " to " + file.getPath ());
+            }
+        }
+    }
+    
+    /**
+     * Writes the file header.
+     */
+    private static void writeHeader (FileChannel channel, int width, int height, ByteOrder order) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+        header.putInt (MAGIC);
+        header.putInt (VERSION);
+        header.putInt (order == ByteOrder.BIG_ENDIAN ? 0 : 1);
+        header.putInt (width);
+        header.putInt (height);
+        header.rewind ();
+        channel.write (header, 0);
+    }
+    
+    /**
+     * Maps a table written by {@link #write(File)} into memory. The coordinates are
+     * read in the byte order given in the header, so tables can be shared between
+     * machines.
+     *
+     * @param file the file to read
+     * @param width the width of the sample grid
+     * @param height the height of the sample grid
+     * @return the table, or null if the file does not exist, or its header or size
+     * does not match a table of this version with the given dimensions
+     */
+    public static RemapTable read (File file, int width, int height) throws IOException {
+        if (!file.exists () || file.length () != HEADER_SIZE + (long) width * height * 8) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile (file, "r");
+        try {
+            FileChannel channel = raf.getChannel ();
+            ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+            while (header.hasRemaining ()) {
+                if (channel.read (header, header.position ()) < 0) {
+                    return null;
+                }
+            }
+            header.rewind ();
+            if (header.getInt () != MAGIC || header.getInt () != VERSION) {
+                return null;
+            }
+            int order = header.getInt ();
+            if ((order != 0 && order != 1) || header.getInt () != width || header.getInt () != height) {
+                return null;
+            }
+            return new RemapTable (width, height, channel, FileChannel.MapMode.READ_ONLY, 
+                order == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close ();
+        }
+    }
+    
+    /**
+     * Returns the file that the table with the given key is stored in.
+     *
+     * @param directory the directory to store tables in
+     * @param key a string that uniquely identifies the geometry of the transform
+     */
+    public static File file (File directory, String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance ("SHA-1");
+            StringBuilder sb = new StringBuilder ("remap-");
+            for (byte b : digest.digest (key.getBytes ("UTF-8"))) {
+                sb.append (String.format ("%02x", b & 0xff));
+            }
+            sb.append (".table");
+            return new File (directory, sb.toString ());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException (e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException (e);
+        }
+    }
+    
+    /**
+     * Gets a table from the cache.
+     *
+     * @param key a string that uniquely identifies the geometry of the transform
+     * @return the table, or null if it is not in the cache
+     */
+    public static synchronized RemapTable cached (String key) {
+        SoftReference<RemapTable> ref = cache.get (key);
+        if (ref == null) {
+            return null;
+        }
+        RemapTable table = ref.get ();
+        if (table == null) {
+            cache.remove (key);
+        }
+        return table;
+    }
+    
+    /**
+     * Puts a table in the cache.
+     *
+     * @param key a string that uniquely identifies the geometry of the transform
+     * @param table the table
+     */
+    public static synchronized void cache (String key, RemapTable table) {
+        cache.put (key, new SoftReference<RemapTable> (table));
+    }
+}
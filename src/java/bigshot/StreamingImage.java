@@ -0,0 +1,369 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A 30-bit (10 per channel) RGB image map that is decoded from a file line by
+ * line, keeping only a window of consecutive lines in memory. The image has the
+ * width and height of the file, but only the lines in the window can be read.
+ * The window is moved down the image with {@link #window(int,int)}.
+ * <p>
+ * The file is decoded once, from top to bottom, by a single read on a decoder
+ * thread, the same way that large images are read into {@link Image.Layout#MAPPED}
+ * images. Each line is copied into the window as soon as the reader reports it. The decoder runs ahead of the window until the lines kept in memory are full,
+ * and then waits for the window to move down. Only images that the reader delivers
+ * line by line, in order, can be streamed: progressive and interlaced images are
+ * rejected when they are opened.
+ * <p>
+ * Used by {@link AbstractSphericalCubicTransform} to transform image maps that are
+ * larger than the available memory, rendering the parts of the output that sample
+ * each window before moving on. The image is read-only.
+ */
+public class StreamingImage extends Image {
+    
+    /**
+     * Number of pixels that the decoder may decode below the last line asked for.
+     */
+    private final static int READ_AHEAD_PIXELS = 16 * 1024 * 1024;
+    
+    /**
+     * The input stream of the file.
+     */
+    private final ImageInputStream iis;
+    
+    /**
+     * The reader that decodes the file.
+     */
+    private final ImageReader reader;
+    
+    /**
+     * Number of lines that the decoder may decode below the last line asked for.
+     */
+    private final int readAhead;
+    
+    /**
+     * The lines in the window, as a ring of {@link #capacity} lines. Line
+     * {@code y} is stored at line {@code y % capacity} of the ring.
+     */
+    private int[] ring = new int[0];
+    
+    /**
+     * Number of lines that fit in the ring.
+     */
+    private int capacity = 0;
+    
+    /**
+     * The first line in the window.
+     */
+    private int top = 0;
+    
+    /**
+     * One past the last line in the window. All lines above this one have been decoded.
+     */
+    private int bottom = 0;
+    
+    /**
+     * The decoder thread, or null if it has not been started.
+     */
+    private Thread decoder = null;
+    
+    /**
+     * Whether the decoder has stopped.
+     */
+    private boolean done = false;
+    
+    /**
+     * Whether the image has been closed.
+     */
+    private boolean closed = false;
+    
+    /**
+     * The error that stopped the decoder, or null.
+     */
+    private Throwable failure = null;
+    
+    /**
+     * Creates an image reading from an open reader.
+     */
+    private StreamingImage (ImageInputStream iis, ImageReader reader) throws IOException {
+        super (reader.getWidth (0), reader.getHeight (0), (int[]) null);
+        this.iis = iis;
+        this.reader = reader;
+        this.readAhead = Math.max (1, READ_AHEAD_PIXELS / width);
+    }
+    
+    /**
+     * Opens an image file for streaming. No lines are decoded until
+     * {@link #window(int,int)} is called.
+     *
+     * @param file the file to read
+     * @throws IOException if the file can't be read, or is progressive or interlaced
+     */
+    public static StreamingImage open (File file) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream (file);
+        if (iis == null) {
+            throw new IOException ("Unable to open " + file.getPath ());
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders (iis);
+        if (!readers.hasNext ()) {
+            iis.close ();
+            throw new IOException ("No image reader found for " + file.getPath ());
+        }
+        ImageReader reader = readers.next ();
+        reader.setInput (iis, false, true);
+        try {
+            if (progressiveScans (reader) > 1) {
+                throw new IOException (file.getPath () + " is progressive or interlaced, and can't be streamed");
+            }
+            return new StreamingImage (iis, reader);
+        } catch (IOException ioe) {
+            reader.dispose ();
+            iis.close ();
+            throw ioe;
+        }
+    }
+    
+    /**
+     * Moves the window so that it holds lines {@code first} to {@code last}, inclusive.
+     * Lines above {@code first} are dropped, and this method waits until the decoder
+     * has decoded {@code last}. More lines than asked for may be decoded.
+     *
+     * @param first the first line that must be in the window
+     * @param last the last line that must be in the window
+     * @throws IllegalStateException if {@code first} is above a line that has been dropped
+     * @throws IOException if the file can't be decoded
+     */
+    public synchronized void window (int first, int last) throws IOException {
+        first = Math.max (0, first);
+        last = Math.min (height - 1, last);
+        if (closed) {
+            throw new IOException ("StreamingImage is closed");
+        }
+        if (first < top) {
+            throw new IllegalStateException ("Line " + first + " has already been dropped. The window starts at line " + top);
+        }
+        top = first;
+        // Dropping lines makes room for the decoder
+        notifyAll ();
+        if (last < bottom) {
+            return;
+        }
+        
+        if (last - top + 1 > capacity) {
+            grow (Math.min (height - top, last - top + 1 + readAhead));
+        }
+        if (decoder == null) {
+            decoder = new Thread (new Runnable () {
+                    public void run () {
+                        decode ();
+                    }
+                }, "StreamingImage decoder");
+            decoder.setDaemon (true);
+            decoder.start ();
+        }
+        
+        while (bottom <= last) {
+            if (failure != null) {
+                throw new IOException ("Unable to decode line " + bottom, failure);
+            }
+            if (done) {
+                throw new IOException ("The reader stopped at line " + bottom + " of " + height);
+            }
+            try {
+                wait ();
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException ("Interrupted waiting for line " + last);
+            }
+        }
+    }
+    
+    /**
+     * Decodes the file, on the decoder thread.
+     */
+    private void decode () {
+        Throwable error = null;
+        try {
+            readLines (reader, new LineHandler () {
+                    public void line (int y, int[] line) {
+                        accept (y, line);
+                    }
+                });
+        } catch (Throwable t) {
+            error = t;
+        }
+        synchronized (this) {
+            if (!closed) {
+                failure = error;
+            }
+            done = true;
+            notifyAll ();
+        }
+    }
+    
+    /**
+     * Copies a line that the reader has decoded into the ring, on the decoder thread.
+     * Waits until the ring has room for the line.
+     *
+     * @param y the line
+     * @param line the 24-bit RGB values of the line
+     * @throws CancellationException if the image has been closed
+     */
+    private synchronized void accept (int y, int[] line) {
+        while (!closed && y >= top + capacity) {
+            try {
+                wait ();
+            } catch (InterruptedException ie) {
+                throw new CancellationException ("Interrupted waiting for room for line " + y);
+            }
+        }
+        if (closed) {
+            throw new CancellationException ("StreamingImage is closed");
+        }
+        
+        // Lines above the window are never read
+        if (y >= top) {
+            int wp = (y % capacity) * width;
+            for (int x = 0; x < width; ++x) {
+                ring[wp + x] = unpack (line[x]);
+            }
+        }
+        ++bottom;
+        notifyAll ();
+    }
+    
+    /**
+     * Makes room for more lines in the ring, keeping the lines in the window.
+     *
+     * @param lines the number of lines that must fit
+     */
+    private void grow (int lines) {
+        int newCapacity = Math.max (lines, capacity * 2);
+        if ((long) newCapacity * width > Integer.MAX_VALUE) {
+            throw new IllegalStateException ("A window of " + lines + " lines of " + width + " pixels is too large");
+        }
+        int[] newRing = new int[newCapacity * width];
+        for (int y = top; y < bottom; ++y) {
+            System.arraycopy (ring, (y % capacity) * width, newRing, (y % newCapacity) * width, width);
+        }
+        ring = newRing;
+        capacity = newCapacity;
+    }
+    
+    /**
+     * The first line in the window.
+     */
+    public synchronized int top () {
+        return top;
+    }
+    
+    /**
+     * One past the last line in the window.
+     */
+    public synchronized int bottom () {
+        return bottom;
+    }
+    
+    /**
+     * Stops the decoder and closes the file.
+     */
+    public void close () throws IOException {
+        Thread running;
+        synchronized (this) {
+            closed = true;
+            notifyAll ();
+            running = decoder;
+        }
+        if (running != null) {
+            try {
+                running.join ();
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException ("Interrupted waiting for the decoder to stop");
+            }
+        }
+        reader.dispose ();
+        iis.close ();
+    }
+    
+    /**
+     * Gets the packed value of a pixel in the window.
+     *
+     * @throws IllegalStateException if the line of the pixel is not in the window
+     */
+    @Override
+        public int value (int x, int y) {
+        x %= width;
+        if (x < 0) {
+            x += width;
+        }
+        if (y >= height) {
+            y = height - 1;
+        }
+        if (y < 0) {
+            y = 0;
+        }
+        if (y < top || y >= bottom) {
+            throw new IllegalStateException ("Line " + y + " is not in the window [" + top + ", " + bottom + ")");
+        }
+        return ring[(y % capacity) * width + x];
+    }
+    
+    @Override
+        public void value (int x, int y, int v) {
+        throw new UnsupportedOperationException ("StreamingImage is read-only");
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int r, int g, int b) {
+        throw new UnsupportedOperationException ("StreamingImage is read-only");
+    }
+    
+    @Override
+        public void multiply (int y0, int y1, int num, int denom) {
+        throw new UnsupportedOperationException ("StreamingImage is read-only");
+    }
+    
+    @Override
+        public void readLine (int y, int[] line) {
+        for (int x = 0; x < width; ++x) {
+            line[x] = pack (value (x, y));
+        }
+    }
+    
+    @Override
+        public void writeLine (int y, int[] line) {
+        throw new UnsupportedOperationException ("StreamingImage is read-only");
+    }
+    
+    /**
+     * Not supported, since only the lines in the window are held.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+        public BufferedImage asBuffered () throws Exception {
+        throw new UnsupportedOperationException ("StreamingImage only holds a window of lines");
+    }
+}
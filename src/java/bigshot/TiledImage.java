@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A 30-bit (10 per channel) RGB image stored as square blocks of
+ * pixels. Each block is stored contiguously, so pixels that are close in
+ * the image are close in memory regardless of the direction in which the
+ * image is traversed. This keeps sampling along rays that cut across many
+ * lines, such as those of the up and down cube faces, cache-friendly.
+ */
+public class TiledImage extends Image {
+    
+    /**
+     * Base-2 logarithm of the block size.
+     */
+    private final static int BLOCK_BITS = 6;
+    
+    /**
+     * Width and height of a block, in pixels.
+     */
+    private final static int BLOCK_SIZE = 1 << BLOCK_BITS;
+    
+    /**
+     * Bitmask to extract the position within a block from a coordinate.
+     */
+    private final static int BLOCK_MASK = BLOCK_SIZE - 1;
+    
+    /**
+     * Number of blocks along the x-axis.
+     */
+    private final int blocksAcross;
+    
+    /**
+     * Image data, one block after another.
+     */
+    private final int[] data;
+    
+    /**
+     * Creates an empty (all-black) image with the given width and height.
+     */
+    public TiledImage (int width, int height) {
+        super (width, height, (int[]) null);
+        this.blocksAcross = (width + BLOCK_MASK) >> BLOCK_BITS;
+        int blocksDown = (height + BLOCK_MASK) >> BLOCK_BITS;
+        this.data = new int[(blocksAcross * blocksDown) << (2 * BLOCK_BITS)];
+    }
+    
+    /**
+     * Computes the index of a pixel in the block storage, without wrapping
+     * or clamping.
+     */
+    private int blockIndex (int x, int y) {
+        int block = (y >> BLOCK_BITS) * blocksAcross + (x >> BLOCK_BITS);
+        return (block << (2 * BLOCK_BITS)) + ((y & BLOCK_MASK) << BLOCK_BITS) + (x & BLOCK_MASK);
+    }
+    
+    /**
+     * Computes the index of a pixel in the block storage. The x-coordinate
+     * wraps around, and the y-coordinate is clamped to the image.
+     */
+    private int wrappedBlockIndex (int x, int y) {
+        x %= width;
+        if (x < 0) {
+            x += width;
+        }
+        if (y >= height) {
+            y = height - 1;
+        }
+        if (y < 0) {
+            y = 0;
+        }
+        return blockIndex (x, y);
+    }
+    
+    @Override
+        public Layout layout () {
+        return Layout.TILED;
+    }
+    
+    @Override
+        public int value (int x, int y) {
+        return data[wrappedBlockIndex (x, y)];
+    }
+    
+    @Override
+        public void value (int x, int y, int v) {
+        data[blockIndex (x, y)] = v;
+    }
+    
+    @Override
+        public void componentValue (int x, int y, int r, int g, int b) {
+        data[blockIndex (x, y)] = (r << RED) | (g << GREEN) | (b << BLUE);
+    }
+    
+    @Override
+        public void sampleComponents (double x, double y, int[] result) {
+        int x0 = (int) x;
+        int y0 = (int) y;
+        double xf = x - x0;
+        double yf = y - y0;
+        
+        int v00 = data[wrappedBlockIndex (x0, y0)];
+        int v10 = data[wrappedBlockIndex (x0 + 1, y0)];
+        int v01 = data[wrappedBlockIndex (x0, y0 + 1)];
+        int v11 = data[wrappedBlockIndex (x0 + 1, y0 + 1)];
+        
+        result[0] = lerp2 (v00, v10, v01, v11, xf, yf, RED);
+        result[1] = lerp2 (v00, v10, v01, v11, xf, yf, GREEN);
+        result[2] = lerp2 (v00, v10, v01, v11, xf, yf, BLUE);
+    }
+    
+    @Override
+        public void multiply (int y0, int y1, int num, int denom) {
+        for (int y = y0; y < y1; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int i = blockIndex (x, y);
+                int v = data[i];
+                int r = ((v >> RED) & COMPONENT_MASK) * num / denom;
+                int g = ((v >> GREEN) & COMPONENT_MASK) * num / denom;
+                int b = ((v >> BLUE) & COMPONENT_MASK) * num / denom;
+                data[i] = (r << RED) | (g << GREEN) | (b << BLUE);
+            }
+        }
+    }
+    
+    @Override
+        public void readLine (int y, int[] line) {
+        for (int x = 0; x < width; x += BLOCK_SIZE) {
+            int rp = blockIndex (x, y);
+            int n = Math.min (BLOCK_SIZE, width - x);
+            for (int i = 0; i < n; ++i) {
+                line[x + i] = pack (data[rp + i]);
+            }
+        }
+    }
+    
+    @Override
+        public void writeLine (int y, int[] line) {
+        for (int x = 0; x < width; x += BLOCK_SIZE) {
+            int wp = blockIndex (x, y);
+            int n = Math.min (BLOCK_SIZE, width - x);
+            for (int i = 0; i < n; ++i) {
+                data[wp + i] = unpack (line[x + i]);
+            }
+        }
+    }
+    
+    @Override
+        public BufferedImage asBuffered () throws Exception {
+        return toBuffered ();
+    }
+}
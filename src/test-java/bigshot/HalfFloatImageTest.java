@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Tests of {@link HalfFloatImage}. Run with {@code ant test}; throws an
+ * {@link AssertionError} on the first failure.
+ */
+public class HalfFloatImageTest {
+    
+    /**
+     * Checks that a channel value is within half float precision of the expected value.
+     */
+    private static void check (String what, float expected, float actual) {
+        if (Math.abs (expected - actual) > Math.abs (expected) / 1024.0f) {
+            throw new AssertionError (what + ": expected " + expected + ", got " + actual);
+        }
+    }
+    
+    /**
+     * Exposure and gamma must keep values above 1.0, instead of clipping them to white.
+     */
+    private static void testExposureKeepsHighDynamicRange () throws Exception {
+        HalfFloatImage image = new HalfFloatImage (2, 1);
+        image.componentValue (0, 0, 8.0f, 2.0f, 0.5f);
+        image.componentValue (1, 0, 16.0f, 4.0f, 1.0f);
+        
+        PixelOperation.exposure (-2.0).apply (image);
+        float[] c = new float[3];
+        image.componentValue (0, 0, c);
+        check ("red at -2 stops", 2.0f, c[0]);
+        check ("green at -2 stops", 0.5f, c[1]);
+        check ("blue at -2 stops", 0.125f, c[2]);
+        
+        PixelOperation.gamma (2.0).apply (image);
+        image.componentValue (1, 0, c);
+        check ("red after gamma 2", 2.0f, c[0]);
+        check ("green after gamma 2", 1.0f, c[1]);
+        check ("blue after gamma 2", 0.5f, c[2]);
+    }
+    
+    /**
+     * Palette images must be read through their color model, not as gray palette indices.
+     */
+    private static void testPaletteImage () throws Exception {
+        IndexColorModel palette = new IndexColorModel (1, 2, 
+            new byte[] { (byte) 255, 0 }, 
+            new byte[] { 0, (byte) 255 }, 
+            new byte[] { 0, (byte) 255 });
+        BufferedImage input = new BufferedImage (2, 1, BufferedImage.TYPE_BYTE_BINARY, palette);
+        input.getRaster ().setSample (1, 0, 0, 1);
+        
+        HalfFloatImage image = HalfFloatImage.fromBuffered (input);
+        float[] c = new float[3];
+        image.componentValue (0, 0, c);
+        check ("red of entry 0", 1.0f, c[0]);
+        check ("green of entry 0", 0.0f, c[1]);
+        check ("blue of entry 0", 0.0f, c[2]);
+        image.componentValue (1, 0, c);
+        check ("red of entry 1", 0.0f, c[0]);
+        check ("green of entry 1", 1.0f, c[1]);
+        check ("blue of entry 1", 1.0f, c[2]);
+    }
+    
+    /**
+     * Gray images keep the precision of their samples.
+     */
+    private static void testGrayImage () throws Exception {
+        BufferedImage input = new BufferedImage (1, 1, BufferedImage.TYPE_USHORT_GRAY);
+        input.getRaster ().setSample (0, 0, 0, 257);
+        
+        HalfFloatImage image = HalfFloatImage.fromBuffered (input);
+        float[] c = new float[3];
+        image.componentValue (0, 0, c);
+        check ("red of gray", 257.0f / 65535.0f, c[0]);
+        check ("green of gray", 257.0f / 65535.0f, c[1]);
+        check ("blue of gray", 257.0f / 65535.0f, c[2]);
+    }
+    
+    public static void main (String[] args) throws Exception {
+        testExposureKeepsHighDynamicRange ();
+        testPaletteImage ();
+        testGrayImage ();
+        System.out.println ("HalfFloatImageTest: OK");
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 - 2012 Leo Sutic <leo.sutic@gmail.com>
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ */
+package bigshot;
+
+import java.io.File;
+
+/**
+ * Tests of {@link PaddedImage}. Run with {@code ant test}; throws an
+ * {@link AssertionError} on the first failure.
+ */
+public class PaddedImageTest {
+    
+    /**
+     * Renders the cube faces of the sample image map with the input in a layout.
+     */
+    private static Image[] faces (Image.Layout layout) throws Exception {
+        Image input = Image.read (new File ("test/sample.jpg"), layout);
+        Image[] faces = new Image[AbstractCubicTransform.FACE_VIEWS.length];
+        for (int f = 0; f < faces.length; ++f) {
+            double[] view = AbstractCubicTransform.FACE_VIEWS[f];
+            faces[f] = new EquirectangularToCubic ()
+                .input (input)
+                .vfov (90)
+                .size (512, 512)
+                .view (view[0], view[1], view[2])
+                .transform ();
+        }
+        return faces;
+    }
+    
+    /**
+     * A padded image map must transform to exactly the same faces as a packed one.
+     */
+    private static void testTransformMatchesPacked () throws Exception {
+        Image[] packed = faces (Image.Layout.PACKED);
+        Image[] padded = faces (Image.Layout.PADDED);
+        for (int f = 0; f < packed.length; ++f) {
+            int differing = 0;
+            for (int y = 0; y < packed[f].height (); ++y) {
+                for (int x = 0; x < packed[f].width (); ++x) {
+                    if (packed[f].value (x, y) != padded[f].value (x, y)) {
+                        ++differing;
+                    }
+                }
+            }
+            if (differing > 0) {
+                throw new AssertionError (AbstractCubicTransform.FACE_NAMES[f] + ": " + differing + " pixels differ from the packed layout");
+            }
+        }
+    }
+    
+    public static void main (String[] args) throws Exception {
+        testTransformMatchesPacked ();
+        System.out.println ("PaddedImageTest: OK");
+    }
+}